@@ -0,0 +1,100 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: Account.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+
+
+/**
+ * One Amazon account which is monitored, identified by a readable name which is used
+ * for the "Account" dynamic measure.
+ *
+ * Additional accounts are configured one per line as
+ *
+ * <pre>
+ * &lt;name&gt; = &lt;accessKeyId&gt;:&lt;secretAccessKey&gt;
+ * </pre>
+ *
+ * Empty lines and lines starting with '#' are ignored.
+ */
+public class Account {
+	private final String name;
+	private final int id;
+	private final BasicAWSCredentials credentials;
+
+	public Account(String name, BasicAWSCredentials credentials) {
+		this.name = name;
+		this.id = SymbolTable.ACCOUNTS.intern(name);
+		this.credentials = credentials;
+	}
+
+	/**
+	 * @param text The accounts, one per line
+	 * @return The parsed accounts
+	 * @throws IllegalArgumentException If a line cannot be parsed
+	 */
+	public static List<Account> parse(String text) {
+		List<Account> accounts = new ArrayList<Account>();
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		try {
+			String line;
+			int lineNumber = 0;
+			while((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				int equals = line.indexOf('=');
+				int colon = line.indexOf(':', equals + 1);
+				if(equals <= 0 || colon == -1) {
+					// do not include the line as it contains the secret key
+					throw new IllegalArgumentException("Could not parse account in line " + lineNumber + ", expected '<name> = <accessKeyId>:<secretAccessKey>'");
+				}
+
+				String accessKeyId = line.substring(equals + 1, colon).trim();
+				String secretAccessKey = line.substring(colon + 1).trim();
+				if(accessKeyId.isEmpty() || secretAccessKey.isEmpty()) {
+					throw new IllegalArgumentException("Could not parse account in line " + lineNumber + ", access key and secret key must not be empty");
+				}
+
+				accounts.add(new Account(line.substring(0, equals).trim(), new BasicAWSCredentials(accessKeyId, secretAccessKey)));
+			}
+		} catch (IOException e) {
+			// cannot happen when reading from a String
+			throw new IllegalStateException(e);
+		}
+		return accounts;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The id of the name in {@link SymbolTable#ACCOUNTS}
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public BasicAWSCredentials getCredentials() {
+		return credentials;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
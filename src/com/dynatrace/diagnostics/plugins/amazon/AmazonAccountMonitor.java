@@ -10,41 +10,48 @@ package com.dynatrace.diagnostics.plugins.amazon;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
-import java.util.Collection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
-import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
-import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
 import com.amazonaws.services.cloudformation.model.Stack;
 import com.amazonaws.services.cloudformation.model.StackStatus;
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
-import com.amazonaws.services.ec2.model.DescribeRegionsRequest;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.InstanceState;
-import com.amazonaws.services.ec2.model.Region;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.rds.AmazonRDSClient;
 import com.amazonaws.services.rds.model.DBInstance;
-import com.amazonaws.services.rds.model.DescribeDBInstancesResult;
 import com.dynatrace.diagnostics.pdk.Monitor;
 import com.dynatrace.diagnostics.pdk.MonitorEnvironment;
-import com.dynatrace.diagnostics.pdk.MonitorMeasure;
 import com.dynatrace.diagnostics.pdk.Status;
 
 
@@ -52,7 +59,8 @@ import com.dynatrace.diagnostics.pdk.Status;
  * A Monitor which polls an Amazon AWS Account and retrieves the following information
  * * number of cloud formations in each state and overall "active"
  * * number of ec2 instances in each state and overall "active"
- * * estimated costs of the currently running instances since last call (0 on first invocation!)
+ * * estimated costs of the running time of instances since last call (last hour on first invocation!)
+ * * failures and duration of the retrieval per service and region
  *
  * @author dominik.stadler
  */
@@ -80,12 +88,51 @@ public class AmazonAccountMonitor implements Monitor {
 	protected static final String ENV_CONFIG_PROXY_DOMAIN = "proxyDomain";
 	protected static final String ENV_CONFIG_PROXY_WORKSTATION = "proxyWorkstation";
 
+	protected static final String ENV_CONFIG_COLLECTION_THREADS = "collectionThreads";
+	protected static final String ENV_CONFIG_REGION_TIMEOUT = "regionTimeout";
+	protected static final String ENV_CONFIG_PAGE_SIZE = "pageSize";
+	protected static final String ENV_CONFIG_ENDPOINT_REFRESH_INTERVAL = "endpointRefreshInterval";
+	protected static final String ENV_CONFIG_PRICE_REFRESH_INTERVAL = "priceRefreshInterval";
+	protected static final String ENV_CONFIG_USAGE_RULES = "usageRules";
+	protected static final String ENV_CONFIG_INCREMENTAL = "incrementalCollection";
+	protected static final String ENV_CONFIG_FULL_SCAN_INTERVAL = "fullScanInterval";
+	protected static final String ENV_CONFIG_CARRY_FORWARD = "carryForward";
+	protected static final String ENV_CONFIG_ACCOUNT_NAME = "accountName";
+	protected static final String ENV_CONFIG_ACCOUNTS = "accounts";
+	protected static final String ENV_CONFIG_CLOUD_FORMATION_REFRESH_INTERVAL = "cloudFormationRefreshInterval";
+	protected static final String ENV_CONFIG_EC2_REFRESH_INTERVAL = "ec2RefreshInterval";
+	protected static final String ENV_CONFIG_RDS_REFRESH_INTERVAL = "rdsRefreshInterval";
+	protected static final String ENV_CONFIG_BACKGROUND_COLLECTION = "backgroundCollection";
+	protected static final String ENV_CONFIG_COLLECTION_INTERVAL = "collectionInterval";
+
+	private static final int DEFAULT_COLLECTION_THREADS = 8;
+	private static final long DEFAULT_REGION_TIMEOUT = 120;
+	private static final long DEFAULT_ENDPOINT_REFRESH_INTERVAL = 720;
+	private static final long DEFAULT_PRICE_REFRESH_INTERVAL = 24;
+	private static final long DEFAULT_FULL_SCAN_INTERVAL = 60;
+	private static final String DEFAULT_ACCOUNT_NAME = "Default";
+	// ec2 instances are retrieved on every run to keep the costs up to date
+	private static final long DEFAULT_CLOUD_FORMATION_REFRESH_INTERVAL = 60;
+	private static final long DEFAULT_EC2_REFRESH_INTERVAL = 0;
+	private static final long DEFAULT_RDS_REFRESH_INTERVAL = 60;
+	private static final long DEFAULT_COLLECTION_INTERVAL = 5;
+
+	// only set for load tests, the url of a local stand-in for Amazon which serves all services and pricing files
+	protected static final String SYSTEM_PROPERTY_ENDPOINT_BASE_URL = "com.dynatrace.diagnostics.plugins.amazon.endpointBaseUrl";
+
+	// how long teardown waits for a background collection which is still running
+	private static final long COLLECTOR_SHUTDOWN_TIMEOUT = 30000;
+
+	// how long the first execution waits for prices if there was no snapshot from a previous run
+	private static final long INITIAL_PRICES_TIMEOUT = 30000;
+
 	/************************************** Metric Groups **************************/
 	protected static final String METRIC_GROUP_CLOUD_FORMATION = "Amazon Cloud Formation";
 	protected static final String METRIC_GROUP_INSTANCE = "Amazon EC2 Instance";
 	protected static final String METRIC_GROUP_INSTANCE_COST = "Amazon EC2 Instance Cost";
 	protected static final String METRIC_GROUP_RDS_INSTANCE = "Amazon RDS Instance";
 	protected static final String METRIC_GROUP_RDS_INSTANCE_COST = "Amazon RDS Instance Cost";
+	protected static final String METRIC_GROUP_HEALTH = "Amazon Collection Health";
 
 	/************************************** Measures **************************/
 	protected static final String MSR_CLOUD_FORMATIONS = "ActiveCount";
@@ -124,6 +171,46 @@ public class AmazonAccountMonitor implements Monitor {
 	protected static final String EC2_STATE_SHUTTING_DOWN = "shutting-down";
 	protected static final String EC2_STATE_TERMINATED = "terminated";
 
+	private static final String EC2_STATE_STOPPING = "stopping";
+
+	// ids of the states which do not count as active instances
+	private static final int EC2_STATE_ID_STOPPED = SymbolTable.STATES.intern(EC2_STATE_STOPPED);
+	private static final int EC2_STATE_ID_TERMINATED = SymbolTable.STATES.intern(EC2_STATE_TERMINATED);
+
+	// states in which instances do not incur costs, rds instances are charged in all states
+	private static final BitSet EC2_STOPPED_STATES = new BitSet();
+	private static final BitSet RDS_STOPPED_STATES = new BitSet();
+	static {
+		EC2_STOPPED_STATES.set(EC2_STATE_ID_STOPPED);
+		EC2_STOPPED_STATES.set(EC2_STATE_ID_TERMINATED);
+	}
+
+	// the time of the state change is only available as part of the reason, e.g. "User initiated (2013-08-19 20:53:25 GMT)"
+	private static final Pattern STATE_TRANSITION_TIME = Pattern.compile("\\((\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) GMT\\)");
+	// SimpleDateFormat is not thread-safe, so each collection thread parses with its own instance
+	private static final ThreadLocal<SimpleDateFormat> STATE_TRANSITION_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+
+	// states in which instances end up when they stop, used for incremental collection
+	private static final List<String> EC2_STOPPED_STATE_NAMES = Arrays.asList(EC2_STATE_STOPPED, EC2_STATE_TERMINATED);
+	// states in which instances are about to change their state, used for incremental collection
+	private static final List<String> EC2_TRANSITIONAL_STATES = Arrays.asList(EC2_STATE_PENDING, EC2_STATE_STOPPING, EC2_STATE_SHUTTING_DOWN);
+	private static final int EC2_STATE_ID_PENDING = SymbolTable.STATES.intern(EC2_STATE_PENDING);
+	private static final int EC2_STATE_ID_STOPPING = SymbolTable.STATES.intern(EC2_STATE_STOPPING);
+	private static final int EC2_STATE_ID_SHUTTING_DOWN = SymbolTable.STATES.intern(EC2_STATE_SHUTTING_DOWN);
+
+	// filters of DescribeInstances
+	private static final String FILTER_STATE = "instance-state-name";
+	private static final String FILTER_LAUNCH_TIME = "launch-time";
+	private static final String FILTER_INSTANCE_ID = "instance-id";
+	private static final int MAX_FILTER_VALUES = 200;
+
 	protected static final String MSR_EC2_INSTANCE_COST = "CostOverall";
 
 	protected static final String MSR_RDS_INSTANCES = "RDSActiveCount";
@@ -132,6 +219,30 @@ public class AmazonAccountMonitor implements Monitor {
 	protected static final String MSR_RDS_INSTANCE_COST = "RDSCostOverall";
 	protected static final String MSR_RDS_INSTANCE_COST_BY_CLASS = "RDSCostByClass";
 
+	protected static final String MSR_FAILED_UNITS = "FailedUnits";
+	protected static final String MSR_CARRIED_FORWARD_UNITS = "CarriedForwardUnits";
+	protected static final String MSR_REUSED_UNITS = "ReusedUnits";
+	protected static final String MSR_COLLECTION_TIME = "CollectionTime";
+	protected static final String MSR_EXECUTION_TIME = "ExecutionTime";
+	protected static final String MSR_DATA_AGE = "DataAge";
+	protected static final String MSR_API_CALLS = "ApiCalls";
+	protected static final String MSR_API_RETRIES = "ApiRetries";
+	protected static final String MSR_API_THROTTLED = "ApiThrottled";
+	protected static final String MSR_API_LATENCY = "ApiLatency";
+	protected static final String MSR_BYTES_RECEIVED = "BytesReceived";
+	protected static final String MSR_PRICING_PARSE_TIME = "PricingParseTime";
+	protected static final String MSR_INSTANCES_PER_SECOND = "InstancesPerSecond";
+
+	// the services as used in the names of the units, e.g. "ec2 us-east-1"
+	private static final String SERVICE_CLOUD_FORMATION = "cloudformation";
+	private static final String SERVICE_EC2 = "ec2";
+	private static final String SERVICE_RDS = "rds";
+	// the stages of the execution which retrieve the data and apply the current prices, the other stages are named by service
+	private static final String STAGE_COLLECT = "collect";
+	private static final String STAGE_PRICES = "prices";
+	// the pricing files as used in the names of the units, e.g. "pricing linux-od.min.js"
+	private static final String UNIT_PRICING = "pricing";
+
 	// TODO: should we use InstanceType directly here?
 	// see InstanceType for current list
 	protected static final String[][] MSR_EC2_INSTANCE_TYPES = {
@@ -188,32 +299,6 @@ public class AmazonAccountMonitor implements Monitor {
 		{"CostHI14XLarge", "hi1.4xlarge"},
 	};
 
-	// see https://github.com/garnaat/missingcloud/blob/master/aws.json and http://aws.amazon.com/articles/3912?_encoding=UTF8&jiveRedirect=1
-	private static Map<String,String> CLOUD_FORMATION_ENDPOINTS = new HashMap<String, String>();
-	static {
-		CLOUD_FORMATION_ENDPOINTS.put("us-east-1", "cloudformation.us-east-1.amazonaws.com");
-		CLOUD_FORMATION_ENDPOINTS.put("us-west-1", "cloudformation.us-west-1.amazonaws.com");
-		CLOUD_FORMATION_ENDPOINTS.put("us-west-2", "cloudformation.us-west-2.amazonaws.com");
-		CLOUD_FORMATION_ENDPOINTS.put("eu-west-1", "cloudformation.eu-west-1.amazonaws.com");
-		CLOUD_FORMATION_ENDPOINTS.put("ap-northeast-1", "cloudformation.ap-southeast-1.amazonaws.com");
-		CLOUD_FORMATION_ENDPOINTS.put("ap-southeast-1", "cloudformation.ap-northeast-1.amazonaws.com");
-		CLOUD_FORMATION_ENDPOINTS.put("ap-southeast-2", "cloudformation.ap-southeast-2.amazonaws.com");
-		CLOUD_FORMATION_ENDPOINTS.put("sa-east-1", "cloudformation.sa-east-1.amazonaws.com");
-	}
-
-	// see https://github.com/garnaat/missingcloud/blob/master/aws.json and http://aws.amazon.com/articles/3912?_encoding=UTF8&jiveRedirect=1
-	private static Map<String,String> RDS_ENDPOINTS = new HashMap<String, String>();
-	static {
-		RDS_ENDPOINTS.put("us-east-1", "rds.us-east-1.amazonaws.com");
-		RDS_ENDPOINTS.put("us-west-1", "rds.us-west-1.amazonaws.com");
-		RDS_ENDPOINTS.put("us-west-2", "rds.us-west-2.amazonaws.com");
-		RDS_ENDPOINTS.put("eu-west-1", "rds.eu-west-1.amazonaws.com");
-		RDS_ENDPOINTS.put("ap-northeast-1", "rds.ap-southeast-1.amazonaws.com");
-		RDS_ENDPOINTS.put("ap-southeast-1", "rds.ap-northeast-1.amazonaws.com");
-		RDS_ENDPOINTS.put("ap-southeast-2", "rds.ap-southeast-2.amazonaws.com");
-		RDS_ENDPOINTS.put("sa-east-1", "rds.sa-east-1.amazonaws.com");
-	}
-
 	//private static final String VIRTUALIZATION_TYPE_PARAVIRTUAL = "paravirtual";	// NON-WINDOWS
 	private static final String VIRTUALIZATION_TYPE_HVM = "hvm";					// WINDOWS
 
@@ -234,6 +319,8 @@ public class AmazonAccountMonitor implements Monitor {
 	}
 
 	private static final String PROP_LAST_CALL = "lastCall";
+	private static final String PREFIX_STATE_EC2_COSTS = "costs.ec2.";
+	private static final String PREFIX_STATE_RDS_COSTS = "costs.rds.";
 
 	protected static final String TAG_USAGE = "Usage";
 	protected static final String TAG_UNKNOWN = "Unknown";
@@ -241,19 +328,33 @@ public class AmazonAccountMonitor implements Monitor {
 	protected static final String TAG_CLASS = "Class";
 	protected static final String TAG_TYPE = "Type";
 	protected static final String TAG_OWNER = "Owner";
+	protected static final String TAG_UNIT = "Unit";
+	protected static final String TAG_STAGE = "Stage";
+	protected static final String TAG_ACCOUNT = "Account";
 
 	/************************************** Variables for Configuration items **************************/
 
 	// access key/secret key
 	private BasicAWSCredentials awsCredentials;
 
+	// the configured account followed by the additional accounts, all collected in parallel
+	private List<Account> accounts;
+
 	// readable name of region - combo box with available regions
 	private String filterRegion;
 	// Amazon region id, null if set to "All"
 	private String activeRegion;
 
 	// costs per instance type, see http://aws.amazon.com/ec2/pricing/, set to the current values
-	private Properties costProperties;
+	private Properties configuredCostProperties;
+
+	// the configured costs, overwritten by the current prices as read from Amazon
+	private PriceTable priceTable;
+	private PriceCatalog prices;
+	private int pricesVersion = -1;
+
+	// rules for the Usage of instances which are not tagged
+	private TagRules usageRules = TagRules.DEFAULT;
 
 	// When was the last time we got called
 	private long lastCall = 0;
@@ -262,8 +363,57 @@ public class AmazonAccountMonitor implements Monitor {
 	private String tempFolder = null;
 	private String uniqueId = null;
 
+	// journal of the state which is kept across restarts, null if it cannot be persisted
+	private StateStore state;
+
 	private ClientConfiguration clientConfig = new ClientConfiguration();
 
+	// runs the retrieval for the different services and regions in parallel
+	private CollectionEngine engine;
+
+	// clients are kept across executions to re-use their HTTP connections
+	private AmazonClientRegistry clients;
+
+	// number of instances which are requested at once
+	private int pageSize = Pages.DEFAULT_PAGE_SIZE;
+
+	// regions and their endpoints, refreshed in the background
+	private EndpointCache endpoints;
+
+	// if set, only instances which could have changed are retrieved between full scans
+	private boolean incremental = false;
+	private long fullScanInterval = DEFAULT_FULL_SCAN_INTERVAL*60*1000;
+
+	// the ec2 instances of each account and region as of the last run, used for incremental collection
+	private final ConcurrentMap<String, InstanceSnapshot> instanceSnapshots = new ConcurrentHashMap<String, InstanceSnapshot>();
+
+	// if set, the last successful result of a unit is reported again while the unit fails
+	private boolean carryForward = false;
+
+	// the last successful result of each unit, only accessed during the collection
+	private final Map<String, Object> lastResults = new HashMap<String, Object>();
+
+	// when each unit needs to be retrieved again, only accessed during the collection
+	private final RefreshSchedule schedule = new RefreshSchedule();
+	// the longest time in ms that the results of a unit are reused, by service
+	private final Map<String, Long> maxRefreshIntervals = new HashMap<String, Long>();
+
+	// if set, the data is retrieved in the background and execute() only reports the latest snapshot
+	private ScheduledExecutorService collector;
+	private volatile CollectionSnapshot latestSnapshot;
+	private final CountDownLatch firstSnapshot = new CountDownLatch(1);
+	// how long the first execution waits for the first snapshot
+	private long firstSnapshotTimeout;
+	// older snapshots are still reported, but indicate that the background collection does not finish any more
+	private long maxSnapshotAge;
+
+	// writes the measures of one execution in one batch
+	private final MeasureWriter measureWriter = new MeasureWriter();
+
+	// until when the running instances were charged, only accessed during execute()
+	private final CostIntegrator instanceCosts = new CostIntegrator();
+	private final CostIntegrator rdsCosts = new CostIntegrator();
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -283,6 +433,26 @@ public class AmazonAccountMonitor implements Monitor {
 
 		awsCredentials = new BasicAWSCredentials(accessKeyId, secretAccessKey);
 
+		String accountName = env.getConfigString(ENV_CONFIG_ACCOUNT_NAME);
+		if (accountName == null || accountName.trim().isEmpty()) {
+			accountName = DEFAULT_ACCOUNT_NAME;
+		}
+		accounts = new ArrayList<Account>();
+		accounts.add(new Account(accountName.trim(), awsCredentials));
+
+		String additionalAccounts = env.getConfigString(ENV_CONFIG_ACCOUNTS);
+		if(additionalAccounts != null && !additionalAccounts.trim().isEmpty()) {
+			Set<String> names = new HashSet<String>();
+			names.add(accountName.trim());
+			for(Account account : Account.parse(additionalAccounts)) {
+				if(!names.add(account.getName())) {
+					throw new IllegalArgumentException("Account " + account.getName() + " is configured more than once");
+				}
+				accounts.add(account);
+			}
+		}
+		log.info("Retrieving data for " + accounts.size() + " accounts: " + accounts);
+
 		filterRegion = env.getConfigString(ENV_CONFIG_REGION);
 		if (filterRegion == null || filterRegion.isEmpty())
 			throw new IllegalArgumentException(
@@ -306,33 +476,22 @@ public class AmazonAccountMonitor implements Monitor {
 					"Parameter <costProperties> must not be empty");
 		}
 
-		costProperties = new Properties();
+		configuredCostProperties = new Properties();
 		ByteArrayInputStream inStream = new ByteArrayInputStream(prop.getBytes());
 		try {
-			costProperties.load(inStream);
+			configuredCostProperties.load(inStream);
 		} finally {
 			inStream.close();
 		}
+		priceTable = new PriceTable.Builder().putAll(configuredCostProperties).build();
 
-		// try to use the price-information from Amazon itself, fall back to manually set properties if it fails
-		// TODO: this currently only includes Linux, not Windows instances, so it only helps to keep some of the
-		// prices up to date, but not all
-		Properties override = new Properties();
-		try {
-			Reader reader = new StringReader(AmazonUtils.readAmazonPriceProperties());
-			try {
-				override.load(reader);
-
-				// copy all found cost-properties onto the previously loaded map of properties
-				for(String name : override.stringPropertyNames()) {
-					costProperties.setProperty(name, override.getProperty(name));
-				}
-			} finally {
-				reader.close();
-			}
-		} catch (Exception e) {
-			log.log(Level.WARNING, "Could not read cost-properties from Amazon via JSON, using only manually set properties", e);
+		String rules = env.getConfigString(ENV_CONFIG_USAGE_RULES);
+		if(rules != null && !rules.trim().isEmpty()) {
+			usageRules = TagRules.compile(rules);
+		} else {
+			usageRules = TagRules.DEFAULT;
 		}
+		log.info("Using " + usageRules.size() + " rules for the usage of untagged instances");
 
 		String temp = env.getConfigString(ENV_CONFIG_TEMP_FOLDER);
 		if (temp != null && !temp.isEmpty()) {
@@ -350,6 +509,37 @@ public class AmazonAccountMonitor implements Monitor {
 			id = "1";
 		}
 
+		// try to use the price-information from Amazon itself, fall back to manually set properties if it fails
+		// the prices are downloaded in the background, a snapshot from the previous run is used until then
+		long priceRefreshInterval = DEFAULT_PRICE_REFRESH_INTERVAL;
+		if(env.getConfigLong(ENV_CONFIG_PRICE_REFRESH_INTERVAL) != null && env.getConfigLong(ENV_CONFIG_PRICE_REFRESH_INTERVAL) > 0) {
+			priceRefreshInterval = env.getConfigLong(ENV_CONFIG_PRICE_REFRESH_INTERVAL);
+		}
+		if(tempFolder != null) {
+			File stateFile = new File(tempFolder, replaceInvalidFileNameCharacters("AmazonAccountMonitor-" + uniqueId + ".journal"));
+			try {
+				state = StateStore.open(stateFile);
+
+				// the accumulators of instances which were running at the last call are stored relative to it
+				lastCall = loadLastCall();
+				instanceCosts.load(state, PREFIX_STATE_EC2_COSTS, lastCall);
+				rdsCosts.load(state, PREFIX_STATE_RDS_COSTS, lastCall);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not open state journal " + stateFile + ", persisting state across restarts is not possible.", e);
+			}
+		}
+		// only set for load tests against a local stand-in for Amazon
+		String endpointBaseUrl = System.getProperty(SYSTEM_PROPERTY_ENDPOINT_BASE_URL);
+		if(endpointBaseUrl == null || endpointBaseUrl.trim().isEmpty()) {
+			endpointBaseUrl = null;
+		} else {
+			endpointBaseUrl = endpointBaseUrl.trim();
+			log.warning("Using services and pricing files at " + endpointBaseUrl + " instead of Amazon");
+		}
+
+		prices = new PriceCatalog(AmazonUtils.getPriceUrls(endpointBaseUrl), state, priceRefreshInterval*60*60*1000);
+		prices.start();
+
 		// add support for proxy configuration, Boolean.equals to also handle possible null-value
 		boolean proxyEnabled = Boolean.TRUE.equals(env.getConfigBoolean(ENV_CONFIG_PROXY_ENABLED));
 		if(proxyEnabled) {
@@ -375,9 +565,100 @@ public class AmazonAccountMonitor implements Monitor {
 			clientConfig.setSocketTimeout(60000);
 		}
 
+		int threads = DEFAULT_COLLECTION_THREADS;
+		if(env.getConfigLong(ENV_CONFIG_COLLECTION_THREADS) != null && env.getConfigLong(ENV_CONFIG_COLLECTION_THREADS) > 0) {
+			threads = env.getConfigLong(ENV_CONFIG_COLLECTION_THREADS).intValue();
+		}
+		long regionTimeout = DEFAULT_REGION_TIMEOUT;
+		if(env.getConfigLong(ENV_CONFIG_REGION_TIMEOUT) != null && env.getConfigLong(ENV_CONFIG_REGION_TIMEOUT) > 0) {
+			regionTimeout = env.getConfigLong(ENV_CONFIG_REGION_TIMEOUT);
+		}
+		if(env.getConfigLong(ENV_CONFIG_PAGE_SIZE) != null && env.getConfigLong(ENV_CONFIG_PAGE_SIZE) > 0) {
+			pageSize = env.getConfigLong(ENV_CONFIG_PAGE_SIZE).intValue();
+		}
+
+		incremental = Boolean.TRUE.equals(env.getConfigBoolean(ENV_CONFIG_INCREMENTAL));
+		if(env.getConfigLong(ENV_CONFIG_FULL_SCAN_INTERVAL) != null && env.getConfigLong(ENV_CONFIG_FULL_SCAN_INTERVAL) > 0) {
+			fullScanInterval = env.getConfigLong(ENV_CONFIG_FULL_SCAN_INTERVAL)*60*1000;
+		}
+		if(incremental) {
+			log.info("Retrieving only changed ec2 instances, full scan every " + (fullScanInterval/60/1000) + " minutes");
+		}
+
+		carryForward = Boolean.TRUE.equals(env.getConfigBoolean(ENV_CONFIG_CARRY_FORWARD));
+
+		maxRefreshIntervals.put(SERVICE_CLOUD_FORMATION, getRefreshInterval(env, ENV_CONFIG_CLOUD_FORMATION_REFRESH_INTERVAL, DEFAULT_CLOUD_FORMATION_REFRESH_INTERVAL));
+		maxRefreshIntervals.put(SERVICE_EC2, getRefreshInterval(env, ENV_CONFIG_EC2_REFRESH_INTERVAL, DEFAULT_EC2_REFRESH_INTERVAL));
+		maxRefreshIntervals.put(SERVICE_RDS, getRefreshInterval(env, ENV_CONFIG_RDS_REFRESH_INTERVAL, DEFAULT_RDS_REFRESH_INTERVAL));
+		log.info("Reusing unchanged results for at most " + maxRefreshIntervals + " ms per service");
+
+		log.info("Retrieving data with " + threads + " threads, timeout per region: " + regionTimeout + " seconds");
+		engine = new CollectionEngine(threads, regionTimeout*1000);
+		// a unit might wait for the same time before it is started
+		firstSnapshotTimeout = 2*regionTimeout*1000;
+
+		// allow each collection thread to keep its own connection per endpoint
+		clientConfig.setMaxConnections(Math.max(threads, clientConfig.getMaxConnections()));
+		clients = new AmazonClientRegistry(clientConfig);
+
+		long endpointRefreshInterval = DEFAULT_ENDPOINT_REFRESH_INTERVAL;
+		if(env.getConfigLong(ENV_CONFIG_ENDPOINT_REFRESH_INTERVAL) != null && env.getConfigLong(ENV_CONFIG_ENDPOINT_REFRESH_INTERVAL) > 0) {
+			endpointRefreshInterval = env.getConfigLong(ENV_CONFIG_ENDPOINT_REFRESH_INTERVAL);
+		}
+		endpoints = new EndpointCache(clients, awsCredentials, endpointBaseUrl, state, endpointRefreshInterval*60*1000);
+		endpoints.start();
+
+		if(Boolean.TRUE.equals(env.getConfigBoolean(ENV_CONFIG_BACKGROUND_COLLECTION))) {
+			long collectionInterval = DEFAULT_COLLECTION_INTERVAL;
+			if(env.getConfigLong(ENV_CONFIG_COLLECTION_INTERVAL) != null && env.getConfigLong(ENV_CONFIG_COLLECTION_INTERVAL) > 0) {
+				collectionInterval = env.getConfigLong(ENV_CONFIG_COLLECTION_INTERVAL);
+			}
+			log.info("Retrieving data in the background every " + collectionInterval + " minutes");
+			maxSnapshotAge = 2*collectionInterval*60*1000 + regionTimeout*1000;
+			startCollector(collectionInterval*60*1000);
+		}
+
 		return new Status(Status.StatusCode.Success);
 	}
 
+	/**
+	 * Retrieve the data periodically in the background and publish each complete result as the
+	 * latest snapshot, a collection which fails keeps the previous snapshot.
+	 *
+	 * @param intervalMs The time between the end of one collection and the start of the next one
+	 */
+	private void startCollector(long intervalMs) {
+		collector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AmazonAccountMonitor-Collection");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		collector.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// any exception or error would stop all further executions of this task
+				try {
+					latestSnapshot = collect();
+				} catch (Throwable e) {
+					log.log(Level.WARNING, "Could not retrieve data from Amazon AWS in the background, keeping the previous results", e);
+				} finally {
+					firstSnapshot.countDown();
+				}
+			}
+		}, 0, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The configured interval in ms, 0 is a valid value which means that the service is retrieved on every run
+	 */
+	private static long getRefreshInterval(MonitorEnvironment env, String key, long defaultMinutes) {
+		Long minutes = env.getConfigLong(key);
+		return (minutes != null && minutes >= 0 ? minutes : defaultMinutes)*60*1000;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -385,25 +666,55 @@ public class AmazonAccountMonitor implements Monitor {
 	 */
 	@Override
 	public Status execute(MonitorEnvironment env) throws Exception {
-		log.info("Executing Amazon Account Monitor for region: " + filterRegion);
+		log.info("Executing Amazon Account Monitor for region: " + filterRegion + " and " + accounts.size() + " accounts");
 
+		long start = System.currentTimeMillis();
+		Measure executionTime = new Measure(TAG_STAGE);
+		List<String> problems = new ArrayList<String>();
+		measureWriter.begin(env);
 		try {
+			CollectionSnapshot snapshot;
+			if(collector == null) {
+				snapshot = collect();
+			} else {
+				// only the first execution has to wait until the data was retrieved
+				firstSnapshot.await(firstSnapshotTimeout, TimeUnit.MILLISECONDS);
+				snapshot = latestSnapshot;
+				if(snapshot == null) {
+					return new Status(Status.StatusCode.PartialSuccess, "No data was retrieved from Amazon yet");
+				}
+				long age = start - snapshot.start;
+				if(age > maxSnapshotAge) {
+					String problem = "The reported data was retrieved " + (age/60/1000) + " minutes ago, the background collection did not finish since then";
+					log.warning(problem);
+					problems.add(problem);
+				}
+			}
+			executionTime.addDynamicMeasure(STAGE_COLLECT, snapshot.duration);
+			long stageStart = System.currentTimeMillis();
+			problems.addAll(snapshot.health.problems);
+
 			// retrieve measures for cloud formation numbers in each state
-			measureStacks(env);
+			measureStacks(env, snapshot.stacks);
+			stageStart = stage(executionTime, SERVICE_CLOUD_FORMATION, stageStart);
 
-			// retrive measures for ec2 instances in each state
-			Map<Reservation, String> reservations = measureInstances(env);
+			// the costs are charged until now, also if the snapshot was taken earlier
+			long now = System.currentTimeMillis();
+			long from = getIntervalStart(now);
 
-			double adjustmentFactor = getAdjustmentFactor();
+			updatePriceTable();
+			stageStart = stage(executionTime, STAGE_PRICES, stageStart);
 
-			// retrieve measures for cost of ec2 instances per instance type
-			measureInstanceCosts(reservations, env, adjustmentFactor);
+			// retrive measures for ec2 instances in each state and their cost per instance type
+			measureInstances(env, snapshot.instances, from, now, problems);
+			stageStart = stage(executionTime, SERVICE_EC2, stageStart);
 
-			// measure RDS instances
-			Map<DBInstance, String> instances = measureRDSInstances(env);
+			// measure RDS instances and their cost
+			measureRDSInstances(env, snapshot.rdsInstances, from, now, problems);
+			stage(executionTime, SERVICE_RDS, stageStart);
 
-			// retrieve measures for cost of rds instances
-			measureRDSInstanceCosts(instances, env, adjustmentFactor);
+			executionTime.setValue(System.currentTimeMillis() - start);
+			writeHealth(env, snapshot.health, executionTime, new Measure(now - snapshot.start));
 		} catch (Exception e) {
 			// Our plugin functionality does not report Exceptions well...
 			log.log(Level.WARNING, "Had exception while communicating with Amazon AWS: " + e);
@@ -414,36 +725,240 @@ public class AmazonAccountMonitor implements Monitor {
 			log.log(Level.WARNING, "Had throwable while communicating with Amazon AWS: " + e);
 			log.log(Level.WARNING, "Had throwable while communicating with Amazon AWS", e);
 			throw new Exception(e);
+		} finally {
+			// also write the measures that were computed before an error
+			measureWriter.flush();
 		}
 
 		// now persist the value
-		persistLastCallTimestamp();
+		persistState();
 
+		if(!problems.isEmpty()) {
+			return new Status(Status.StatusCode.PartialSuccess, "Reported partial results, had " + problems.size() + " problems", problems.toString());
+		}
 		return new Status(Status.StatusCode.Success);
 	}
 
-	private void measureStacks(MonitorEnvironment env) {
-		final Collection<String> endPoints;
-		if(isShowAllRegions()) {
-			endPoints = CLOUD_FORMATION_ENDPOINTS.values();
-		} else {
-			endPoints = Collections.singleton(CLOUD_FORMATION_ENDPOINTS.get(activeRegion));
+	/**
+	 * Retrieve the data of all services, accounts and regions.
+	 *
+	 * Each unit succeeds or fails on its own, failed units are only missing from the results
+	 * and recorded in the health of the snapshot.
+	 *
+	 * @return The results, which are not changed afterwards
+	 */
+	private CollectionSnapshot collect() {
+		long start = System.currentTimeMillis();
+		List<CollectionEngine.Unit<?>> units = new ArrayList<CollectionEngine.Unit<?>>();
+		CollectionHealth health = new CollectionHealth();
+		try {
+			// fan out the retrieval for all services, accounts and regions so they run at the same time
+			// units which are not due report the result of a previous run
+			Map<String, CollectionEngine.Unit<StackCounts>> stackUnits = submitStacks(start);
+			units.addAll(stackUnits.values());
+			Map<String, CollectionEngine.Unit<Inventory>> instanceUnits = submitInstances(start);
+			units.addAll(instanceUnits.values());
+			Map<String, CollectionEngine.Unit<Inventory>> rdsUnits = submitRDSInstances(start);
+			units.addAll(rdsUnits.values());
+
+			List<StackCounts> stacks = awaitUnits(SERVICE_CLOUD_FORMATION, stackUnits, start, health);
+			List<Inventory> instances = awaitUnits(SERVICE_EC2, instanceUnits, start, health);
+			List<Inventory> rdsInstances = awaitUnits(SERVICE_RDS, rdsUnits, start, health);
+			health.complete();
+
+			return new CollectionSnapshot(start, System.currentTimeMillis() - start, stacks, instances, rdsInstances, health);
+		} finally {
+			// stop any retrieval that is still running if we stopped early because of an error
+			engine.cancel(units);
+		}
+	}
+
+	/**
+	 * @param executionTime
+	 * @param stage
+	 * @param start When the stage started
+	 * @return When the stage ended, i.e. the start of the next stage
+	 */
+	private static long stage(Measure executionTime, String stage, long start) {
+		long end = System.currentTimeMillis();
+		executionTime.addDynamicMeasure(stage, end - start);
+		return end;
+	}
+
+	/**
+	 * Wait for all units of one service and collect the results of the ones that succeeded.
+	 *
+	 * Failures are recorded in the health measures, if configured the last successful
+	 * result of a failed unit is used instead. The refresh period of each unit is adapted
+	 * to whether its result changed.
+	 *
+	 * @param service
+	 * @param units The units by region, or by account and region if multiple accounts are collected
+	 * @param now When the units were submitted
+	 * @param health
+	 * @return The results of all units that succeeded, were reused or were carried forward
+	 */
+	private <T> List<T> awaitUnits(String service, Map<String, CollectionEngine.Unit<T>> units, long now, CollectionHealth health) {
+		List<T> results = new ArrayList<T>();
+		for(Map.Entry<String, CollectionEngine.Unit<T>> entry : units.entrySet()) {
+			String key = service + " " + entry.getKey();
+			CollectionEngine.Unit<T> unit = entry.getValue();
+
+			String problem = null;
+			T result = null;
+			try {
+				result = engine.await(unit);
+				if(result == null) {
+					problem = "did not finish in time";
+				}
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Retrieving " + unit.getName() + " failed, results are missing for this run", e);
+				problem = e.toString();
+			}
+
+			if(unit.isReused()) {
+				health.reused.incValue();
+				health.reused.addDynamicMeasure(key, 1);
+				results.add(result);
+				continue;
+			}
+
+			health.duration.setValue(Math.max(health.duration.getValue(), unit.getDuration()));
+			health.duration.addDynamicMeasure(key, unit.getDuration());
+			health.addStatistics(key, unit.getStatistics());
+			if(result instanceof Inventory && unit.getDuration() > 0) {
+				health.addInstances(key, ((Inventory)result).size(), unit.getDuration());
+			}
+
+			if(problem == null) {
+				health.failed.addDynamicMeasure(key, 0);
+				health.reused.addDynamicMeasure(key, 0);
+				lastResults.put(key, result);
+				results.add(result);
+
+				long period = schedule.onRetrieved(key, fingerprint(result), maxRefreshIntervals.get(service), now);
+				if(log.isLoggable(Level.FINE)) {
+					log.fine("Retrieving " + key + " again in " + (period/1000) + " seconds at the earliest");
+				}
+				continue;
+			}
+
+			schedule.reset(key);
+			health.failed.incValue();
+			health.failed.addDynamicMeasure(key, 1);
+			health.problems.add(key + ": " + problem);
+
+			if(carryForward && lastResults.containsKey(key)) {
+				// the results are not changed after they were stored, so they can be reported again
+				@SuppressWarnings("unchecked")
+				T lastResult = (T)lastResults.get(key);
+				health.carriedForward.incValue();
+				health.carriedForward.addDynamicMeasure(key, 1);
+				results.add(lastResult);
+			}
 		}
+		return results;
+	}
 
-		// walk all the different regions that were specified
-		Measure count = new Measure();
-		Map<String, Measure> countPerStatus = new HashMap<String, Measure>();
-		for(String endPoint : endPoints) {
+	/**
+	 * @return A hash of the given result of a unit which changes if the reported measures change
+	 */
+	private static long fingerprint(Object result) {
+		if(result instanceof Inventory) {
+			return ((Inventory)result).fingerprint();
+		}
+		return ((StackCounts)result).fingerprint();
+	}
+
+	/**
+	 * Submit the unit if it needs to be retrieved in this run, otherwise reuse the result of
+	 * the last run.
+	 *
+	 * @param service
+	 * @param key The key of the unit, see {@link #getUnitKey(Account, String)}
+	 * @param name A readable name of the unit, used for logging
+	 * @param task The task which retrieves the data
+	 * @param now
+	 * @return The handle of the unit
+	 */
+	private <T> CollectionEngine.Unit<T> submitIfDue(String service, String key, String name, Callable<T> task, long now) {
+		String unitKey = service + " " + key;
+		if(!schedule.isDue(unitKey, now) && lastResults.containsKey(unitKey)) {
 			if(log.isLoggable(Level.FINE)) {
-				log.fine("Retrieving cloud formation stacks for endpoint: " + endPoint);
+				log.fine("Reusing the last result for " + name);
 			}
 
-			AmazonCloudFormation stackbuilder = new AmazonCloudFormationClient(awsCredentials, clientConfig);
-			stackbuilder.setEndpoint(endPoint);
+			// the results are not changed after they were stored, so they can be reported again
+			@SuppressWarnings("unchecked")
+			T lastResult = (T)lastResults.get(unitKey);
+			return engine.reuse(name, lastResult);
+		}
+		return engine.submit(name, task);
+	}
+
+	/**
+	 * @param env
+	 * @param health The health of the collection which retrieved the reported data
+	 * @param executionTime
+	 * @param dataAge How old the reported data is in ms
+	 */
+	private void writeHealth(MonitorEnvironment env, CollectionHealth health, Measure executionTime, Measure dataAge) {
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_FAILED_UNITS, env, health.failed);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_CARRIED_FORWARD_UNITS, env, health.carriedForward);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_REUSED_UNITS, env, health.reused);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_COLLECTION_TIME, env, health.duration);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_EXECUTION_TIME, env, executionTime);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_DATA_AGE, env, dataAge);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_API_CALLS, env, health.apiCalls);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_API_RETRIES, env, health.apiRetries);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_API_THROTTLED, env, health.apiThrottled);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_BYTES_RECEIVED, env, health.bytesReceived);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_API_LATENCY, env, health.apiLatency);
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_INSTANCES_PER_SECOND, env, health.instancesPerSecond);
+
+		// the pricing files are parsed in the background, report the last time each of them changed
+		Measure parseTime = new Measure(TAG_UNIT);
+		for(Map.Entry<String, Long> entry : prices.getParseTimes().entrySet()) {
+			String url = entry.getKey();
+			parseTime.addValue(entry.getValue());
+			parseTime.addDynamicMeasure(UNIT_PRICING + " " + url.substring(url.lastIndexOf('/') + 1), entry.getValue());
+		}
+		writeMeasure(METRIC_GROUP_HEALTH, MSR_PRICING_PARSE_TIME, env, parseTime);
+	}
+
+	private Map<String, CollectionEngine.Unit<StackCounts>> submitStacks(long now) {
+		Map<String, CollectionEngine.Unit<StackCounts>> units = new LinkedHashMap<String, CollectionEngine.Unit<StackCounts>>();
+		Map<String, String> endPoints = getCloudFormationEndpoints();
+		for(final Account account : accounts) {
+			for(final Map.Entry<String,String> entry : endPoints.entrySet()) {
+				String key = getUnitKey(account, entry.getKey());
+				units.put(key, submitIfDue(SERVICE_CLOUD_FORMATION, key, "cloud formation stacks for account " + account + " and region " + entry.getKey(), new Callable<StackCounts>() {
+					@Override
+					public StackCounts call() throws Exception {
+						return collectStacks(account, entry.getValue());
+					}
+				}, now));
+			}
+		}
+		return units;
+	}
+
+	/**
+	 * @return The key of the unit for the account and region, only the region if a single account is collected to keep the health measures of existing installations
+	 */
+	private String getUnitKey(Account account, String region) {
+		return accounts.size() == 1 ? region : account.getName() + " " + region;
+	}
 
-			DescribeStacksRequest stackRequest = new DescribeStacksRequest();
-			List<Stack> stacks = stackbuilder.describeStacks(stackRequest).getStacks();
+	private StackCounts collectStacks(Account account, String endPoint) {
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Retrieving cloud formation stacks for account " + account + " and endpoint: " + endPoint);
+		}
 
+		AmazonCloudFormation stackbuilder = clients.getCloudFormationClient(account.getCredentials(), endPoint);
+
+		StackCounts counts = new StackCounts();
+		for(List<Stack> stacks : Pages.stacks(stackbuilder)) {
 			for (Stack stack : stacks) {
 				String status = stack.getStackStatus();
 				if(log.isLoggable(Level.FINE)) {
@@ -456,86 +971,249 @@ public class AmazonAccountMonitor implements Monitor {
 
 				// only count this as "active" if it is none of the excluded states
 				if(!MSR_CLOUD_FORMATIONS_EXCLUDE.contains(status)) {
-					count.incValue();
+					counts.count.incValue();
+					counts.countByAccount.incValue();
+					counts.countByAccount.addDynamicMeasure(account.getName(), 1);
 				}
 
-				if(!countPerStatus.containsKey(status)) {
-					countPerStatus.put(status, new Measure(1));
+				if(!counts.countPerStatus.containsKey(status)) {
+					counts.countPerStatus.put(status, new Measure(1));
 				} else {
-					countPerStatus.get(status).incValue();
+					counts.countPerStatus.get(status).incValue();
 				}
 			}
 		}
 
+		return counts;
+	}
+
+	private void measureStacks(MonitorEnvironment env, List<StackCounts> results) {
+		// merge the results of all the different regions that were specified
+		StackCounts counts = new StackCounts();
+		for(StackCounts regionCounts : results) {
+			counts.add(regionCounts);
+		}
+
 		// retrieve and set the measurements
-		writeMeasure(METRIC_GROUP_CLOUD_FORMATION, MSR_CLOUD_FORMATIONS, env, count);
+		writeMeasure(METRIC_GROUP_CLOUD_FORMATION, MSR_CLOUD_FORMATIONS, env, counts.count);
+		writeMeasure(METRIC_GROUP_CLOUD_FORMATION, MSR_CLOUD_FORMATIONS, env, counts.countByAccount);
 
 		// write measures for all status-values that we found
-		for(Map.Entry<String, Measure> entry : countPerStatus.entrySet()) {
+		for(Map.Entry<String, Measure> entry : counts.countPerStatus.entrySet()) {
 			writeMeasure(METRIC_GROUP_CLOUD_FORMATION, "Count_" + entry.getKey(), env, entry.getValue());
 		}
 	}
 
-	private Map<Reservation, String> measureInstances(MonitorEnvironment env) {
-		final Map<String, String> endPoints = getEC2Endpoints();
+	private Map<String, CollectionEngine.Unit<Inventory>> submitInstances(long now) {
+		Map<String, CollectionEngine.Unit<Inventory>> units = new LinkedHashMap<String, CollectionEngine.Unit<Inventory>>();
+		Map<String, String> endPoints = getEC2Endpoints();
+		for(final Account account : accounts) {
+			for(final Map.Entry<String,String> entry : endPoints.entrySet()) {
+				String key = getUnitKey(account, entry.getKey());
+				units.put(key, submitIfDue(SERVICE_EC2, key, "ec2 instances for account " + account + " and region " + entry.getKey(), new Callable<Inventory>() {
+					@Override
+					public Inventory call() throws Exception {
+						return collectInstances(account, entry.getKey(), entry.getValue());
+					}
+				}, now));
+			}
+		}
+		return units;
+	}
 
-		// walk all the different regions that were specified
-		Measure count = new Measure(TAG_USAGE);
-		Measure countByOwner = new Measure(TAG_OWNER);
+	private Inventory collectInstances(Account account, String region, String endPoint) {
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Retrieving ec2 instances for account " + account + " and endpoint: " + endPoint);
+		}
 
-		Map<String, Measure> countPerStatus = new HashMap<String, Measure>();
-		Map<Reservation, String> allReservations = new HashMap<Reservation, String>();
-		for(Map.Entry<String,String> entry : endPoints.entrySet()) {
-			if(log.isLoggable(Level.FINE)) {
-				log.fine("Retrieving ec2 instances for endpoint: " + entry.getValue());
+		AmazonEC2Client client = clients.getEC2Client(account.getCredentials(), endPoint);
+		int regionId = SymbolTable.REGIONS.intern(region);
+		String snapshotKey = account.getName() + "/" + region;
+
+		long now = System.currentTimeMillis();
+		InstanceSnapshot previous = instanceSnapshots.get(snapshotKey);
+		if(!incremental || previous == null || now - previous.fullScan >= fullScanInterval) {
+			Inventory inventory = new Inventory();
+			for(List<Reservation> reservations : Pages.reservations(client, pageSize)) {
+				addInstances(inventory, account.getId(), regionId, reservations, false);
 			}
 
-			AmazonEC2Client client = new AmazonEC2Client(awsCredentials, clientConfig);
-			client.setEndpoint(entry.getValue());
-			DescribeInstancesRequest instanceRequest = new DescribeInstancesRequest();
-			List<Reservation> reservations = client.describeInstances(instanceRequest).getReservations();
+			if(incremental) {
+				instanceSnapshots.put(snapshotKey, new InstanceSnapshot(inventory, now, now));
+			}
+			return inventory;
+		}
 
-			for(Reservation reservation : reservations) {
-				allReservations.put(reservation, entry.getKey());
+		// only retrieve instances which could have changed since the last run and apply them
+		// on a copy of the previous inventory, the previous one might still be in use
+		Inventory inventory = previous.inventory.copy();
+		int changed = 0;
 
-				for(Instance instance : reservation.getInstances()) {
-					String status = instance.getState().getName();
-					if(log.isLoggable(Level.FINE)) {
-						log.fine("Having Instance: " + instance.getInstanceId() + ", state: " + status + ", public ip:  " + instance.getPublicDnsName());
-					}
+		// instances which stopped since the last run, usually too quickly to be seen while stopping,
+		// only applied to instances which are still active in the inventory so that they are no longer charged
+		for(List<Reservation> reservations : Pages.reservations(client, pageSize, new Filter(FILTER_STATE, EC2_STOPPED_STATE_NAMES))) {
+			changed += addStoppedInstances(inventory, account.getId(), regionId, reservations);
+		}
 
-					final String usage = AmazonUtils.getUsageTag(instance);
-					final String owner = AmazonUtils.getOwnerTag(instance);
+		// instances which are currently changing their state
+		changed += collectChangedInstances(client, inventory, account.getId(), regionId, new Filter(FILTER_STATE, EC2_TRANSITIONAL_STATES));
 
-					// by definition we exclude stopped and terminated from overall count
-					if(!EC2_STATE_STOPPED.equals(status) && !EC2_STATE_TERMINATED.equals(status)) {
-						count.incValue();
-						count.addDynamicMeasure(usage, 1);
-					}
+		// instances which were launched since the last run
+		changed += collectChangedInstances(client, inventory, account.getId(), regionId, new Filter(FILTER_LAUNCH_TIME, getLaunchDays(previous.lastScan, now)));
 
-					if(!EC2_STATE_STOPPED.equals(status) && !EC2_STATE_TERMINATED.equals(status)) {
-						countByOwner.incValue();
-						countByOwner.addDynamicMeasure(owner, 1);
-					}
+		// instances which were changing their state during the last run, to get the state they ended up in
+		List<String> ids = getTransitionalInstances(previous.inventory);
+		for(int start = 0;start < ids.size();start += MAX_FILTER_VALUES) {
+			List<String> values = ids.subList(start, Math.min(ids.size(), start + MAX_FILTER_VALUES));
+			changed += collectChangedInstances(client, inventory, account.getId(), regionId, new Filter(FILTER_INSTANCE_ID, values));
+		}
 
-					if(!countPerStatus.containsKey(status)) {
-						countPerStatus.put(status, new Measure(TAG_USAGE, 1));
-					} else {
-						countPerStatus.get(status).incValue();
-					}
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Retrieved " + changed + " changed ec2 instances for account " + account + " and region " + region + ", having " + inventory.size() + " instances overall");
+		}
 
-					countPerStatus.get(status).addDynamicMeasure(usage, 1);
+		instanceSnapshots.put(snapshotKey, new InstanceSnapshot(inventory, previous.fullScan, now));
+		return inventory;
+	}
+
+	private int collectChangedInstances(AmazonEC2Client client, Inventory inventory, int accountId, int regionId, Filter filter) {
+		int count = 0;
+		for(List<Reservation> reservations : Pages.reservations(client, pageSize, filter)) {
+			count += addInstances(inventory, accountId, regionId, reservations, true);
+		}
+		return count;
+	}
+
+	private int addStoppedInstances(Inventory inventory, int accountId, int regionId, List<Reservation> reservations) {
+		int count = 0;
+		for(Reservation reservation : reservations) {
+			for(Instance instance : reservation.getInstances()) {
+				int row = inventory.indexOf(instance.getInstanceId());
+				if(row != -1 && !EC2_STOPPED_STATES.get(inventory.getState(row))) {
+					addInstance(inventory, accountId, regionId, instance, true);
+					count++;
 				}
 			}
 		}
+		return count;
+	}
 
-		writeMeasure(METRIC_GROUP_INSTANCE, MSR_EC2_INSTANCES, env, count);
-		writeMeasure(METRIC_GROUP_INSTANCE, MSR_EC2_INSTANCES, env, countByOwner);
+	private int addInstances(Inventory inventory, int accountId, int regionId, List<Reservation> reservations, boolean replace) {
+		int count = 0;
+		for(Reservation reservation : reservations) {
+			for(Instance instance : reservation.getInstances()) {
+				addInstance(inventory, accountId, regionId, instance, replace);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void addInstance(Inventory inventory, int accountId, int regionId, Instance instance, boolean replace) {
+		String status = instance.getState().getName();
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Having Instance: " + instance.getInstanceId() + ", state: " + status + ", public ip:  " + instance.getPublicDnsName());
+		}
+
+		final int os;
+		if(VIRTUALIZATION_TYPE_HVM.equals(instance.getVirtualizationType())) {
+			// Windows
+			os = PriceTable.OS_WINDOWS;
+		} else {
+			// Other/Linux
+			os = PriceTable.OS_LINUX;
+		}
+
+		// index the tags once and evaluate all rules on it
+		TagRules.Tags tags = TagRules.Tags.of(instance);
+
+		int type = SymbolTable.INSTANCE_TYPES.intern(instance.getInstanceType());
+		int state = SymbolTable.STATES.intern(status);
+		int usage = SymbolTable.TAGS.intern(usageRules.getUsage(tags));
+		int owner = SymbolTable.TAGS.intern(tags.getOrUnknown(TAG_OWNER));
+		long launchTime = instance.getLaunchTime() == null ? 0 : instance.getLaunchTime().getTime();
+		long stateTime = getStateTransitionTime(instance.getStateTransitionReason());
+		if(replace) {
+			inventory.put(instance.getInstanceId(), accountId, regionId, type, state, usage, owner, os, launchTime, stateTime);
+		} else {
+			inventory.add(instance.getInstanceId(), accountId, regionId, type, state, usage, owner, os, launchTime, stateTime);
+		}
+	}
+
+	/**
+	 * @param reason
+	 * @return The time when the instance changed its state as reported in the reason, 0 if not available
+	 */
+	private static long getStateTransitionTime(String reason) {
+		if(reason == null) {
+			return 0;
+		}
+
+		Matcher matcher = STATE_TRANSITION_TIME.matcher(reason);
+		if(!matcher.find()) {
+			return 0;
+		}
+
+		try {
+			return STATE_TRANSITION_FORMAT.get().parse(matcher.group(1)).getTime();
+		} catch (ParseException e) {
+			if(log.isLoggable(Level.FINE)) {
+				log.fine("Could not parse time of state transition from reason: " + reason);
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The values for the launch-time filter which match all instances launched between the two times
+	 */
+	private static List<String> getLaunchDays(long from, long to) {
+		// launch times are reported in UTC, e.g. 2013-08-19T20:53:25.000Z
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		List<String> days = new ArrayList<String>();
+		long day = from - from % TimeUnit.DAYS.toMillis(1);
+		for(;day <= to;day += TimeUnit.DAYS.toMillis(1)) {
+			days.add(format.format(new Date(day)) + "*");
+		}
+		return days;
+	}
+
+	private static List<String> getTransitionalInstances(Inventory inventory) {
+		List<String> ids = new ArrayList<String>();
+		for(int row = 0;row < inventory.size();row++) {
+			int state = inventory.getState(row);
+			if(state == EC2_STATE_ID_PENDING || state == EC2_STATE_ID_STOPPING || state == EC2_STATE_ID_SHUTTING_DOWN) {
+				ids.add(inventory.getId(row));
+			}
+		}
+		return ids;
+	}
+
+	private void measureInstances(MonitorEnvironment env, List<Inventory> results, long from, long now, List<String> problems) {
+		// merge the results of all the different regions that were specified
+		Inventory inventory = new Inventory();
+		for(Inventory regionInventory : results) {
+			inventory.addAll(regionInventory);
+		}
+
+		// charge each instance for the time it was actually running
+		double[] hours = instanceCosts.integrate(inventory, EC2_STOPPED_STATES, from, now);
+		InstanceAggregate aggregate = new InstanceAggregate(inventory, hours, priceTable);
+
+		writeMeasure(METRIC_GROUP_INSTANCE, MSR_EC2_INSTANCES, env, aggregate.count);
+		writeMeasure(METRIC_GROUP_INSTANCE, MSR_EC2_INSTANCES, env, aggregate.countByOwner);
+		writeMeasure(METRIC_GROUP_INSTANCE, MSR_EC2_INSTANCES, env, aggregate.countByAccount);
 
 		// write measures for all status-values that we found
-		for(Map.Entry<String, Measure> entry : countPerStatus.entrySet()) {
-			String status = entry.getKey();
-			Measure value = entry.getValue();
+		for(int state = 0;state < aggregate.countPerStatus.length;state++) {
+			Measure value = aggregate.countPerStatus[state];
+			if(value == null) {
+				continue;
+			}
+
+			String status = SymbolTable.STATES.name(state);
 			if(status.equals(EC2_STATE_STOPPED)) {
 				writeMeasure(METRIC_GROUP_INSTANCE, MSR_EC2_INSTANCES_STOPPED, env, value);
 			} else if(status.equals(EC2_STATE_PENDING)) {
@@ -551,91 +1229,98 @@ public class AmazonAccountMonitor implements Monitor {
 			}
 		}
 
-		return allReservations;
-	}
-
-	private Map<DBInstance, String> measureRDSInstances(MonitorEnvironment env) {
-		final Map<String, String> endPoints = getRDSEndpoints();
+		// costs are only reported if all of them could be computed, the counts are still valid
+		if(aggregate.missingPrice != null) {
+			reportMissingPrice(aggregate.missingPrice, problems);
+			return;
+		}
 
-		// walk all the different regions that were specified
-		Measure count = new Measure(TAG_STATUS);
-		Measure countByClass = new Measure(TAG_CLASS);
+		writeMeasure(METRIC_GROUP_INSTANCE_COST, MSR_EC2_INSTANCE_COST, env, aggregate.costs);
+		writeMeasure(METRIC_GROUP_INSTANCE_COST, MSR_EC2_INSTANCE_COST, env, aggregate.costsByType);
+		writeMeasure(METRIC_GROUP_INSTANCE_COST, MSR_EC2_INSTANCE_COST, env, aggregate.costsByOwner);
+		writeMeasure(METRIC_GROUP_INSTANCE_COST, MSR_EC2_INSTANCE_COST, env, aggregate.costsByAccount);
+		for(String[] msr : AmazonAccountMonitor.MSR_EC2_INSTANCE_TYPES) {
+			int type = SymbolTable.INSTANCE_TYPES.get(msr[1]);
+			if(type >= 0 && type < aggregate.costsPerType.length && aggregate.costsPerType[type] != null) {
+				writeMeasure(METRIC_GROUP_INSTANCE_COST, msr[0], env, aggregate.costsPerType[type]);
+			}
+		}
+	}
 
-		Map<DBInstance, String> allInstances = new HashMap<DBInstance, String>();
-		for(Map.Entry<String,String> entry : endPoints.entrySet()) {
-			if(log.isLoggable(Level.FINE)) {
-				log.fine("Retrieving rds instances for endpoint: " + entry.getValue());
+	private Map<String, CollectionEngine.Unit<Inventory>> submitRDSInstances(long now) {
+		Map<String, CollectionEngine.Unit<Inventory>> units = new LinkedHashMap<String, CollectionEngine.Unit<Inventory>>();
+		Map<String, String> endPoints = getRDSEndpoints();
+		for(final Account account : accounts) {
+			for(final Map.Entry<String,String> entry : endPoints.entrySet()) {
+				String key = getUnitKey(account, entry.getKey());
+				units.put(key, submitIfDue(SERVICE_RDS, key, "rds instances for account " + account + " and region " + entry.getKey(), new Callable<Inventory>() {
+					@Override
+					public Inventory call() throws Exception {
+						return collectRDSInstances(account, entry.getKey(), entry.getValue());
+					}
+				}, now));
 			}
+		}
+		return units;
+	}
 
-			AmazonRDSClient client = new AmazonRDSClient(awsCredentials, clientConfig);
-			client.setEndpoint(entry.getValue());
+	private Inventory collectRDSInstances(Account account, String region, String endPoint) {
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Retrieving rds instances for account " + account + " and endpoint: " + endPoint);
+		}
 
-			DescribeDBInstancesResult instanceRequest = client.describeDBInstances();
-			List<DBInstance> dbInstances = instanceRequest.getDBInstances();
-			for(DBInstance instance : dbInstances) {
-				allInstances.put(instance, entry.getKey());
+		AmazonRDSClient client = clients.getRDSClient(account.getCredentials(), endPoint);
 
+		int regionId = SymbolTable.REGIONS.intern(region);
+		Inventory inventory = new Inventory();
+		for(List<DBInstance> dbInstances : Pages.dbInstances(client, pageSize)) {
+			for(DBInstance instance : dbInstances) {
 				String status = instance.getDBInstanceStatus();
 				if(log.isLoggable(Level.FINE)) {
 					log.fine("Having Instance: " + instance.getDBInstanceIdentifier() + ", state: " + status);
 				}
 
-				String instanceClass = instance.getDBInstanceClass();
-
-				count.incValue();
-				count.addDynamicMeasure(status, 1);
-
-				countByClass.incValue();
-				countByClass.addDynamicMeasure(instanceClass, 1);
+				inventory.add(instance.getDBInstanceIdentifier(), account.getId(), regionId,
+						SymbolTable.INSTANCE_TYPES.intern(instance.getDBInstanceClass()),
+						SymbolTable.STATES.intern(status),
+						-1, -1, PriceTable.OS_NONE,
+						instance.getInstanceCreateTime() == null ? 0 : instance.getInstanceCreateTime().getTime(), 0);
 			}
 		}
 
-		writeMeasure(METRIC_GROUP_RDS_INSTANCE, MSR_RDS_INSTANCES, env, count);
-		writeMeasure(METRIC_GROUP_RDS_INSTANCE, MSR_RDS_INSTANCES_BY_CLASS, env, countByClass);
-
-		return allInstances;
+		return inventory;
 	}
 
-	private void measureRDSInstanceCosts(Map<DBInstance, String> instances, MonitorEnvironment env, double adjustmentFactor) {
-		Measure overallCosts = new Measure(TAG_STATUS);
-		overallCosts.setAdjustmentFactor(adjustmentFactor);
-		Measure costsByClass = new Measure(TAG_CLASS);
-		costsByClass.setAdjustmentFactor(adjustmentFactor);
-
-		for(DBInstance instance : instances.keySet()) {
-			StringBuilder property = new StringBuilder("cost.");
-
-			String instanceClass = instance.getDBInstanceClass();
-			/*if(type == null) {
-				throw new IllegalArgumentException("Could not determine type of instance: " + instance.getInstanceId() + ", key: " + instance.getKeyName() + ", state: " + instance.getState().getName());
-			}*/
-			String status = instance.getDBInstanceStatus();
-
-			property.append(instances.get(instance)).append(".").append(instanceClass);
-
-			String costString = costProperties.getProperty(property.toString());
-			if(log.isLoggable(Level.FINE)) {
-				log.fine("Cost for RDS instance with state: " + status + ": property: " + property.toString() + ": " + costString);
-			}
-
-			if(costString == null) {
-				throw new IllegalArgumentException("Could not find defined costs for property: " + property.toString() + ", please check the provided properties for 'Amazon Instance Cost'");
-			}
+	private void measureRDSInstances(MonitorEnvironment env, List<Inventory> results, long from, long now, List<String> problems) {
+		// merge the results of all the different regions that were specified
+		Inventory inventory = new Inventory();
+		for(Inventory regionInventory : results) {
+			inventory.addAll(regionInventory);
+		}
 
-			double costsPerHour = Double.parseDouble(costString);
+		// charge each instance for the time it was actually running
+		double[] hours = rdsCosts.integrate(inventory, RDS_STOPPED_STATES, from, now);
+		RDSAggregate aggregate = new RDSAggregate(inventory, hours, priceTable);
 
-			// sum up costs overall and for this status
-			overallCosts.addValue(costsPerHour);
-			overallCosts.addDynamicMeasure(status, costsPerHour);
+		writeMeasure(METRIC_GROUP_RDS_INSTANCE, MSR_RDS_INSTANCES, env, aggregate.count);
+		writeMeasure(METRIC_GROUP_RDS_INSTANCE, MSR_RDS_INSTANCES_BY_CLASS, env, aggregate.countByClass);
+		writeMeasure(METRIC_GROUP_RDS_INSTANCE, MSR_RDS_INSTANCES, env, aggregate.countByAccount);
 
-			// sum up costs overall and for this type
-			costsByClass.addValue(costsPerHour);
-			costsByClass.addDynamicMeasure(instanceClass, costsPerHour);
+		// costs are only reported if all of them could be computed, the counts are still valid
+		if(aggregate.missingPrice != null) {
+			reportMissingPrice(aggregate.missingPrice, problems);
+			return;
 		}
 
-		// write measures, adjust based on the per-hour-factor that we calculated
-		writeMeasure(METRIC_GROUP_RDS_INSTANCE_COST, MSR_RDS_INSTANCE_COST, env, overallCosts);
-		writeMeasure(METRIC_GROUP_RDS_INSTANCE_COST, MSR_RDS_INSTANCE_COST_BY_CLASS, env, costsByClass);
+		writeMeasure(METRIC_GROUP_RDS_INSTANCE_COST, MSR_RDS_INSTANCE_COST, env, aggregate.costs);
+		writeMeasure(METRIC_GROUP_RDS_INSTANCE_COST, MSR_RDS_INSTANCE_COST_BY_CLASS, env, aggregate.costsByClass);
+		writeMeasure(METRIC_GROUP_RDS_INSTANCE_COST, MSR_RDS_INSTANCE_COST, env, aggregate.costsByAccount);
+	}
+
+	private static void reportMissingPrice(String missingPrice, List<String> problems) {
+		String problem = "Could not find defined costs for property: " + missingPrice + ", please check the provided properties for 'Amazon Instance Cost'";
+		log.warning(problem);
+		problems.add(problem);
 	}
 
 	/**
@@ -644,34 +1329,28 @@ public class AmazonAccountMonitor implements Monitor {
 	 * @author dominik.stadler
 	 */
 	protected Map<String, String> getEC2Endpoints() {
-		final Map<String, String> endPoints = new HashMap<String, String>();
-		AmazonEC2Client client = new AmazonEC2Client(awsCredentials, clientConfig);
-		DescribeRegionsRequest regionsRequest = new DescribeRegionsRequest();
-		List<Region> regions = client.describeRegions(regionsRequest).getRegions();
-		for(Region region : regions) {
-			if(log.isLoggable(Level.FINE)) {
-				log.fine("Region: " + region.getRegionName() + ", endpoint: " + region.getEndpoint());
-			}
-
-			// if should show all regions or this is the region that we are interested in
-			if(isShowAllRegions() ||
-					(region.getRegionName().equals(activeRegion))) {
-				endPoints.put(region.getRegionName(), region.getEndpoint());
-			}
-		}
+		return filterEndpoints(endpoints.getEC2Endpoints());
+	}
 
-		return endPoints;
+	protected Map<String, String> getCloudFormationEndpoints() {
+		return filterEndpoints(endpoints.getCloudFormationEndpoints());
 	}
 
 	protected Map<String, String> getRDSEndpoints() {
-		final Map<String, String> endPoints;
+		return filterEndpoints(endpoints.getRDSEndpoints());
+	}
+
+	private Map<String, String> filterEndpoints(Map<String, String> endPoints) {
+		// if should show all regions or only the region that we are interested in
 		if(isShowAllRegions()) {
-			endPoints = RDS_ENDPOINTS;
-		} else {
-			endPoints = Collections.singletonMap(activeRegion, RDS_ENDPOINTS.get(activeRegion));
+			return endPoints;
 		}
 
-		return endPoints;
+		if(!endPoints.containsKey(activeRegion)) {
+			log.warning("Did not find an endpoint for region " + activeRegion + " in the list of available regions: " + endPoints.keySet());
+			return Collections.emptyMap();
+		}
+		return Collections.singletonMap(activeRegion, endPoints.get(activeRegion));
 	}
 
 	/**
@@ -684,188 +1363,127 @@ public class AmazonAccountMonitor implements Monitor {
 	}
 
 	/**
+	 * Queue the value, all values are written at the end of the execution.
 	 *
 	 * @param env
 	 * @param value
 	 * @param dynamicMeasures
 	 */
 	protected void writeMeasure(String group, String name, MonitorEnvironment env, Measure value) {
-		Collection<MonitorMeasure> measures = env.getMonitorMeasures(group, name);
-		if (measures != null) {
-			if (log.isLoggable(Level.INFO)) {
-				log.info("Setting measure '" + name + "' to value " + value.getValue() + ", dynamic: " + value.getDynamicMeasureName() + ": " + value.getDynamicMeasures());
-			}
-			for (MonitorMeasure measure : measures) {
-				measure.setValue(value.getValue());
-
-				if(value.getDynamicMeasures() != null) {
-				     //for this subscribed measure we want to create a dynamic measure
-					for(Map.Entry<String, Double> dynamic : value.getDynamicMeasures().entrySet()) {
-					     MonitorMeasure dynamicMeasure = env.createDynamicMeasure(measure, value.getDynamicMeasureName(), dynamic.getKey());
-					     dynamicMeasure.setValue(dynamic.getValue());
-					}
-				}
-			}
-		} else {
-			log.warning("Could not find measure " + name + "@" + group + ", tried to report value: " + value);
-		}
+		measureWriter.write(group, name, value);
 	}
 
 	/**
+	 * Apply the current prices from Amazon on top of the configured costs whenever they changed.
 	 *
-	 * @param reservations
-	 * @param env
-	 * @author dominik.stadler
-	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private void measureInstanceCosts(Map<Reservation, String> reservations, MonitorEnvironment env, double adjustmentFactor) {
-		/*// read regions
-		AmazonEC2Client client = new AmazonEC2Client(awsCredentials, clientConfig);
-		DescribeRegionsRequest regionsRequest = new DescribeRegionsRequest();
-		List<Region> regions = client.describeRegions(regionsRequest).getRegions();
-		for(Region region : regions) {
-			log.info("Region: " + region.getRegionName() + ", endpoint: " + region.getEndpoint());
-		}*/
-
-		Measure overallCosts = new Measure(TAG_USAGE);
-		Measure overallCostsByType = new Measure(TAG_TYPE);
-		Measure overallCostsByOwner = new Measure(TAG_OWNER);
-		overallCosts.setAdjustmentFactor(adjustmentFactor);
-
-		Map<String, Measure> costsPerType = new HashMap<String, Measure>();
-
-		for(Reservation reservation : reservations.keySet()) {
-			for(Instance instance : reservation.getInstances()) {
-				StringBuilder property = new StringBuilder("cost.");
+	private void updatePriceTable() throws InterruptedException {
+		if(pricesVersion == -1 && !prices.awaitInitialLoad(INITIAL_PRICES_TIMEOUT)) {
+			log.warning("Prices could not be read from Amazon in time, using only manually set properties for now");
+		}
 
-				String type = instance.getInstanceType();
-				/*if(type == null) {
-					throw new IllegalArgumentException("Could not determine type of instance: " + instance.getInstanceId() + ", key: " + instance.getKeyName() + ", state: " + instance.getState().getName());
-				}*/
+		int version = prices.getVersion();
+		if(version == pricesVersion) {
+			return;
+		}
 
-				property.append(reservations.get(reservation)).append(".").append(type);
+		// apply all found cost-properties on top of the configured properties
+		priceTable = new PriceTable.Builder().
+				putAll(configuredCostProperties).
+				putAll(prices.getPrices()).
+				build();
+		pricesVersion = version;
 
-				String virtType = instance.getVirtualizationType();
-				if(VIRTUALIZATION_TYPE_HVM.equals(virtType)) {
-					// Windows
-					property.append(".windows");
-				} else {
-					// Other/Linux
-					property.append(".linux");
-				}
+		log.info("Using " + priceTable.size() + " prices for calculating costs");
+	}
 
-				// There is enum InstanceStateName, but it does not contain "stopped"!?
-				// by definition stopped and terminated do not incur costs
-				// although Amazon documents only "terminated" does not cause costs, we found out that
-				// also stopped instances do not cause costs
-				InstanceState state = instance.getState();
-				if(!EC2_STATE_STOPPED.equals(state.getName()) && !EC2_STATE_TERMINATED.equals(state.getName())) {
-					if(log.isLoggable(Level.FINE)) {
-						log.fine("Cost for instance with state: " + state.getName() + ": property: " + property.toString() + ": " + costProperties.getProperty(property.toString()));
-					}
+	private void persistState() {
+		if(state == null) {
+			return;
+		}
 
-					if(costProperties.getProperty(property.toString()) == null) {
-						throw new IllegalArgumentException("Could not find defined costs for property: " + property.toString() + ", please check the provided properties for 'Amazon Instance Cost'");
-					}
+		try {
+			state.put(PROP_LAST_CALL, Long.toString(lastCall));
+			instanceCosts.save(state, PREFIX_STATE_EC2_COSTS, lastCall);
+			rdsCosts.save(state, PREFIX_STATE_RDS_COSTS, lastCall);
+
+			// a crash after this point does not lose the state of this run
+			state.sync();
+			log.info("Storing " + lastCall + " as persisten time of last execution");
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not persist state of this execution", e);
+		}
+	}
 
-					double costsPerHour = Double.parseDouble(costProperties.getProperty(property.toString()));
-
-					final String usage = AmazonUtils.getUsageTag(instance);
-					final String owner = AmazonUtils.getOwnerTag(instance);
-
-					// sum up costs overall and for this type
-					overallCosts.addValue(costsPerHour);
-					overallCosts.addDynamicMeasure(usage, costsPerHour);
-					overallCostsByType.addValue(costsPerHour);
-					overallCostsByType.addDynamicMeasure(type, costsPerHour);
-					overallCostsByOwner.addValue(costsPerHour);
-					overallCostsByOwner.addDynamicMeasure(owner, costsPerHour);
-
-					if(!costsPerType.containsKey(type)) {
-						Measure value = new Measure(TAG_USAGE, costsPerHour);
-						value.setAdjustmentFactor(adjustmentFactor);
-						costsPerType.put(type, value);
-					} else {
-						costsPerType.get(type).addValue(costsPerHour);
-					}
+	/**
+	 * Costs are reported for the time since we were called the last time, if we are
+	 * called multiple times per hour, only a part of the hourly price is reported, if we
+	 * are not called for some hours, it is added up.
+	 *
+	 * @param now
+	 * @return The start of the interval for which costs are reported, one hour if we were not called before
+	 */
+	private long getIntervalStart(long now) {
+		// default if not called before is to report costs for one hour
+		long from = now - (long)HOUR_IN_MS;
 
-					costsPerType.get(type).addDynamicMeasure(usage, costsPerHour);
-				}
-			}
+		// lastCall is zero at first call, try to load from persisted state
+		if(lastCall == 0 && state != null) {
+			lastCall = loadLastCall();
 		}
 
-		// write measures, adjust based on the per-hour-factor that we calculated
-		writeMeasure(METRIC_GROUP_INSTANCE_COST, MSR_EC2_INSTANCE_COST, env, overallCosts);
-		writeMeasure(METRIC_GROUP_INSTANCE_COST, MSR_EC2_INSTANCE_COST, env, overallCostsByType);
-		writeMeasure(METRIC_GROUP_INSTANCE_COST, MSR_EC2_INSTANCE_COST, env, overallCostsByOwner);
-		for(String[] msr : AmazonAccountMonitor.MSR_EC2_INSTANCE_TYPES) {
-			if(costsPerType.containsKey(msr[1])) {
-				writeMeasure(METRIC_GROUP_INSTANCE_COST, msr[0], env, costsPerType.get(msr[1]));
-			}
+		// if we now found a timestamp, we can report the actual interval
+		if(lastCall != 0) {
+			from = lastCall;
+			log.info("Reporting costs for " + (now - from) + "ms, " + ((now - from) / HOUR_IN_MS) + " hours");
 		}
+		lastCall = now;
+		return from;
 	}
 
-	private void persistLastCallTimestamp() {
-		if(tempFolder != null) {
-			Properties prop = new Properties();
-			File file = new File(tempFolder, replaceInvalidFileNameCharacters("AmazonAccountMonitor-" + uniqueId + ".properties"));
+	/**
+	 * @return The time of the last call from the persisted state, 0 if not available
+	 */
+	private long loadLastCall() {
+		String property = state.get(PROP_LAST_CALL);
+		if(property == null) {
+			property = readLegacyLastCall();
+		}
+		if(property != null) {
 			try {
-				FileOutputStream outStream = new FileOutputStream(file);
-				try {
-					prop.setProperty(PROP_LAST_CALL, Long.toString(lastCall));
-					prop.store(outStream, "Created by AmazonAccountMonitor");
-					log.info("Storing " + lastCall + " as persisten time of last execution");
-				} finally {
-					outStream.close();
-				}
-			} catch (IOException e) {
-				log.log(Level.WARNING, "Could not read properties file: " + file, e);
+				long time = Long.parseLong(property);
+				log.info("Loaded " + time + " as time of last execution");
+				return time;
+			} catch (NumberFormatException e) {
+				log.log(Level.WARNING, "Could not parse property for 'lastCall' to long: " + property, e);
 			}
 		}
+		return 0;
 	}
 
-	private double getAdjustmentFactor() {
-		// adjust for last time called, i.e. if we are called multiple times per hour, we divide,
-		// if we are not called for some hours, we add it up.
-		// default if not called before is to report costs for one hour
-		double adjustmentFactor = 1.0;
-
-		// lastCall is zero at first call, try to load from persisted properties
-		if(lastCall == 0 && tempFolder != null) {
-			File file = new File(tempFolder, replaceInvalidFileNameCharacters("AmazonAccountMonitor-" + uniqueId + ".properties"));
-			if(file.exists()) {
-				Properties prop = new Properties();
-				try {
-					FileInputStream inStream = new FileInputStream(file);
-					try {
-						prop.load(inStream);
-
-						String property = prop.getProperty(PROP_LAST_CALL);
-						if(property != null) {
-							try {
-								lastCall = Long.parseLong(property);
-								log.info("Loaded " + lastCall + " as time of last execution");
-							} catch (NumberFormatException e) {
-								log.log(Level.WARNING, "Could not parse property for 'lastCall' to long: " + property, e);
-							}
-						}
-					} finally {
-						inStream.close();
-					}
-				} catch (IOException e) {
-					log.log(Level.WARNING, "Could not read properties file: " + file, e);
-				}
-			}
+	/**
+	 * @return The time of the last call from the properties file of previous versions, null if not available
+	 */
+	private String readLegacyLastCall() {
+		File file = new File(tempFolder, replaceInvalidFileNameCharacters("AmazonAccountMonitor-" + uniqueId + ".properties"));
+		if(!file.exists()) {
+			return null;
 		}
 
-		// if we now found a timestamp, we can compute a more accurate adjustment factor
-		if(lastCall != 0) {
-			long time = System.currentTimeMillis() - lastCall;
-			adjustmentFactor = time / HOUR_IN_MS;			// adjustment factor is per hour
-			log.info("Adjusting costs for " + time + "ms, adjustment factor: " + adjustmentFactor);
+		Properties prop = new Properties();
+		try {
+			FileInputStream inStream = new FileInputStream(file);
+			try {
+				prop.load(inStream);
+			} finally {
+				inStream.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not read properties file: " + file, e);
+			return null;
 		}
-		lastCall = System.currentTimeMillis();
-		return adjustmentFactor;
+		return prop.getProperty(PROP_LAST_CALL);
 	}
 
 	// Copied from FileTools as this was added post-4.0 but monitor should work on 4.0 as well
@@ -881,6 +1499,335 @@ public class AmazonAccountMonitor implements Monitor {
 	 */
 	@Override
 	public void teardown(MonitorEnvironment env) throws Exception {
-		// nothing to do here
+		if(collector != null) {
+			// the collection uses the engine, clients and state which are closed below
+			collector.shutdownNow();
+			if(!collector.awaitTermination(COLLECTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				log.warning("Background collection did not stop within " + COLLECTOR_SHUTDOWN_TIMEOUT + "ms");
+			}
+			collector = null;
+		}
+		if(prices != null) {
+			prices.shutdown();
+			prices = null;
+		}
+		if(endpoints != null) {
+			endpoints.shutdown();
+			endpoints = null;
+		}
+		if(engine != null) {
+			engine.shutdown();
+			engine = null;
+		}
+		if(clients != null) {
+			clients.shutdown();
+			clients = null;
+		}
+		if(state != null) {
+			state.close();
+			state = null;
+		}
+	}
+
+	/**
+	 * Counts of cloud formation stacks, retrieved per region and merged afterwards.
+	 */
+	private static class StackCounts {
+		private final Measure count = new Measure();
+		private final Measure countByAccount = new Measure(TAG_ACCOUNT);
+		private final Map<String, Measure> countPerStatus = new HashMap<String, Measure>();
+
+		private void add(StackCounts other) {
+			count.add(other.count);
+			countByAccount.add(other.countByAccount);
+			mergeMeasures(countPerStatus, other.countPerStatus);
+		}
+
+		/**
+		 * @return A hash of the counts, which does not depend on the order of the states
+		 */
+		private long fingerprint() {
+			long fingerprint = (long)count.getValue();
+			for(Map.Entry<String, Measure> entry : countPerStatus.entrySet()) {
+				fingerprint += entry.getKey().hashCode()*31L + (long)entry.getValue().getValue();
+			}
+			return fingerprint;
+		}
+	}
+
+	/**
+	 * The results of all units of one collection, not changed after it was created, so
+	 * it can be reported by multiple executions while the next collection is running.
+	 */
+	private static class CollectionSnapshot {
+		// when the collection was started
+		private final long start;
+		// how long the collection took in ms
+		private final long duration;
+
+		private final List<StackCounts> stacks;
+		private final List<Inventory> instances;
+		private final List<Inventory> rdsInstances;
+		private final CollectionHealth health;
+
+		private CollectionSnapshot(long start, long duration, List<StackCounts> stacks, List<Inventory> instances,
+				List<Inventory> rdsInstances, CollectionHealth health) {
+			this.start = start;
+			this.duration = duration;
+			this.stacks = stacks;
+			this.instances = instances;
+			this.rdsInstances = rdsInstances;
+			this.health = health;
+		}
+	}
+
+	/**
+	 * Which units failed during one collection, how long they took and which requests they sent to
+	 * Amazon, reported as health measures per unit, e.g. "ec2 us-east-1".
+	 */
+	private static class CollectionHealth {
+		private final Measure failed = new Measure(TAG_UNIT);
+		private final Measure carriedForward = new Measure(TAG_UNIT);
+		// units which were not due and reported the result of a previous run
+		private final Measure reused = new Measure(TAG_UNIT);
+		// the longest duration of all units in ms
+		private final Measure duration = new Measure(TAG_UNIT);
+
+		private final Measure apiCalls = new Measure(TAG_UNIT);
+		private final Measure apiRetries = new Measure(TAG_UNIT);
+		private final Measure apiThrottled = new Measure(TAG_UNIT);
+		private final Measure bytesReceived = new Measure(TAG_UNIT);
+		// the average time per call in ms
+		private final Measure apiLatency = new Measure(TAG_UNIT);
+		private double apiLatencyTotal = 0;
+
+		private final Measure instancesPerSecond = new Measure(TAG_UNIT);
+		private long instances = 0;
+		private long instancesDuration = 0;
+
+		// readable descriptions of failed units, reported in the status
+		private final List<String> problems = new ArrayList<String>();
+
+		private void addStatistics(String key, ApiStatistics statistics) {
+			int calls = statistics.getCalls();
+			apiCalls.addValue(calls);
+			apiCalls.addDynamicMeasure(key, calls);
+			apiRetries.addValue(statistics.getRetries());
+			apiRetries.addDynamicMeasure(key, statistics.getRetries());
+			apiThrottled.addValue(statistics.getThrottled());
+			apiThrottled.addDynamicMeasure(key, statistics.getThrottled());
+			bytesReceived.addValue(statistics.getBytes());
+			bytesReceived.addDynamicMeasure(key, statistics.getBytes());
+
+			double latency = statistics.getLatency();
+			apiLatencyTotal += latency;
+			if(calls > 0) {
+				apiLatency.addDynamicMeasure(key, latency / calls);
+			}
+		}
+
+		private void addInstances(String key, int count, long durationMs) {
+			instances += count;
+			instancesDuration += durationMs;
+			instancesPerSecond.addDynamicMeasure(key, count * 1000.0 / durationMs);
+		}
+
+		/**
+		 * Compute the averages over all units after all units were added.
+		 */
+		private void complete() {
+			if(apiCalls.getValue() > 0) {
+				apiLatency.setValue(apiLatencyTotal / apiCalls.getValue());
+			}
+			if(instancesDuration > 0) {
+				instancesPerSecond.setValue(instances * 1000.0 / instancesDuration);
+			}
+		}
+	}
+
+	/**
+	 * The ec2 instances of one region as retrieved during the last run.
+	 */
+	private static class InstanceSnapshot {
+		// not changed after it was stored
+		private final Inventory inventory;
+		// when the last full scan was started
+		private final long fullScan;
+		// when the last full or incremental scan was started
+		private final long lastScan;
+
+		private InstanceSnapshot(Inventory inventory, long fullScan, long lastScan) {
+			this.inventory = inventory;
+			this.fullScan = fullScan;
+			this.lastScan = lastScan;
+		}
+	}
+
+	/**
+	 * Counts and costs of ec2 instances, computed in a single pass over the inventory.
+	 */
+	private static class InstanceAggregate {
+		private final Measure count = new Measure(TAG_USAGE);
+		private final Measure countByOwner = new Measure(TAG_OWNER);
+		private final Measure countByAccount = new Measure(TAG_ACCOUNT);
+		// indexed by the id of the state
+		private final Measure[] countPerStatus = new Measure[SymbolTable.STATES.size()];
+
+		private final Measure costs = new Measure(TAG_USAGE);
+		private final Measure costsByType = new Measure(TAG_TYPE);
+		private final Measure costsByOwner = new Measure(TAG_OWNER);
+		private final Measure costsByAccount = new Measure(TAG_ACCOUNT);
+		// indexed by the id of the instance type
+		private final Measure[] costsPerType = new Measure[SymbolTable.INSTANCE_TYPES.size()];
+
+		// the cost-property of the first instance for which no price was found
+		private String missingPrice;
+
+		private InstanceAggregate(Inventory inventory, double[] hours, PriceTable table) {
+			for(int row = 0;row < inventory.size();row++) {
+				add(inventory, row, hours[row], table);
+			}
+		}
+
+		private void add(Inventory inventory, int row, double hours, PriceTable table) {
+			int state = inventory.getState(row);
+			String usage = SymbolTable.TAGS.name(inventory.getUsage(row));
+			String owner = SymbolTable.TAGS.name(inventory.getOwner(row));
+			String account = SymbolTable.ACCOUNTS.name(inventory.getAccount(row));
+
+			Measure perStatus = countPerStatus[state];
+			if(perStatus == null) {
+				perStatus = new Measure(TAG_USAGE);
+				countPerStatus[state] = perStatus;
+			}
+			perStatus.incValue();
+			perStatus.addDynamicMeasure(usage, 1);
+
+			// There is enum InstanceStateName, but it does not contain "stopped"!?
+			// by definition we exclude stopped and terminated from overall count and
+			// they do not incur costs, although Amazon documents only "terminated" does not cause costs,
+			// we found out that also stopped instances do not cause costs
+			boolean active = state != EC2_STATE_ID_STOPPED && state != EC2_STATE_ID_TERMINATED;
+			if(active) {
+				count.incValue();
+				count.addDynamicMeasure(usage, 1);
+				countByOwner.incValue();
+				countByOwner.addDynamicMeasure(owner, 1);
+				countByAccount.incValue();
+				countByAccount.addDynamicMeasure(account, 1);
+			} else if(hours == 0) {
+				// stopped before the interval started
+				return;
+			}
+
+			int region = inventory.getRegion(row);
+			int type = inventory.getType(row);
+			int os = inventory.getOs(row);
+			double costsPerHour = table.price(region, type, os);
+			if(log.isLoggable(Level.FINE)) {
+				log.fine("Cost for instance with state: " + SymbolTable.STATES.name(state) + ": property: " +
+						PriceTable.getPropertyName(SymbolTable.REGIONS.name(region), SymbolTable.INSTANCE_TYPES.name(type), os) + ": " + costsPerHour);
+			}
+
+			if(Double.isNaN(costsPerHour)) {
+				if(missingPrice == null) {
+					missingPrice = PriceTable.getPropertyName(SymbolTable.REGIONS.name(region), SymbolTable.INSTANCE_TYPES.name(type), os);
+				}
+				return;
+			}
+
+			// sum up costs overall and for this type
+			double cost = costsPerHour*hours;
+			costs.addValue(cost);
+			costs.addDynamicMeasure(usage, cost);
+			costsByType.addValue(cost);
+			costsByType.addDynamicMeasure(SymbolTable.INSTANCE_TYPES.name(type), cost);
+			costsByOwner.addValue(cost);
+			costsByOwner.addDynamicMeasure(owner, cost);
+			costsByAccount.addValue(cost);
+			costsByAccount.addDynamicMeasure(account, cost);
+
+			Measure perType = costsPerType[type];
+			if(perType == null) {
+				perType = new Measure(TAG_USAGE);
+				costsPerType[type] = perType;
+			}
+			perType.addValue(cost);
+			perType.addDynamicMeasure(usage, cost);
+		}
+	}
+
+	/**
+	 * Counts and costs of rds instances, computed in a single pass over the inventory.
+	 */
+	private static class RDSAggregate {
+		private final Measure count = new Measure(TAG_STATUS);
+		private final Measure countByClass = new Measure(TAG_CLASS);
+		private final Measure countByAccount = new Measure(TAG_ACCOUNT);
+
+		private final Measure costs = new Measure(TAG_STATUS);
+		private final Measure costsByClass = new Measure(TAG_CLASS);
+		private final Measure costsByAccount = new Measure(TAG_ACCOUNT);
+
+		// the cost-property of the first instance for which no price was found
+		private String missingPrice;
+
+		private RDSAggregate(Inventory inventory, double[] hours, PriceTable table) {
+			for(int row = 0;row < inventory.size();row++) {
+				add(inventory, row, hours[row], table);
+			}
+		}
+
+		private void add(Inventory inventory, int row, double hours, PriceTable table) {
+			String status = SymbolTable.STATES.name(inventory.getState(row));
+			int region = inventory.getRegion(row);
+			int type = inventory.getType(row);
+			String instanceClass = SymbolTable.INSTANCE_TYPES.name(type);
+			String account = SymbolTable.ACCOUNTS.name(inventory.getAccount(row));
+
+			count.incValue();
+			count.addDynamicMeasure(status, 1);
+
+			countByClass.incValue();
+			countByClass.addDynamicMeasure(instanceClass, 1);
+
+			countByAccount.incValue();
+			countByAccount.addDynamicMeasure(account, 1);
+
+			double costsPerHour = table.price(region, type, PriceTable.OS_NONE);
+			if(log.isLoggable(Level.FINE)) {
+				log.fine("Cost for RDS instance with state: " + status + ": property: " + PriceTable.getPropertyName(SymbolTable.REGIONS.name(region), instanceClass, PriceTable.OS_NONE) + ": " + costsPerHour);
+			}
+
+			if(Double.isNaN(costsPerHour)) {
+				if(missingPrice == null) {
+					missingPrice = PriceTable.getPropertyName(SymbolTable.REGIONS.name(region), instanceClass, PriceTable.OS_NONE);
+				}
+				return;
+			}
+
+			// sum up costs overall and for this status
+			double cost = costsPerHour*hours;
+			costs.addValue(cost);
+			costs.addDynamicMeasure(status, cost);
+
+			// sum up costs overall and for this type
+			costsByClass.addValue(cost);
+			costsByClass.addDynamicMeasure(instanceClass, cost);
+
+			costsByAccount.addValue(cost);
+			costsByAccount.addDynamicMeasure(account, cost);
+		}
+	}
+
+	private static void mergeMeasures(Map<String, Measure> measures, Map<String, Measure> others) {
+		for(Map.Entry<String, Measure> entry : others.entrySet()) {
+			Measure measure = measures.get(entry.getKey());
+			if(measure == null) {
+				measure = new Measure(entry.getValue().getDynamicMeasureName());
+				measures.put(entry.getKey(), measure);
+			}
+			measure.add(entry.getValue());
+		}
 	}
 }
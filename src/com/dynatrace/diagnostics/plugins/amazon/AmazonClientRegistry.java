@@ -0,0 +1,129 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: AmazonClientRegistry.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.rds.AmazonRDSClient;
+
+
+/**
+ * Keeps one client per service, endpoint and set of credentials so that the
+ * HTTP connections of the clients are pooled and kept alive across executions
+ * of the monitor instead of being set up again for every request.
+ *
+ * The Amazon clients are thread-safe, so the same client can be used by
+ * multiple collection threads at the same time. All clients of one account
+ * share the {@link RateLimiter} of that account.
+ *
+ * Call {@link #shutdown()} to release the connections when the registry is not
+ * used any more.
+ */
+public class AmazonClientRegistry {
+	private static final Logger log = Logger.getLogger(AmazonClientRegistry.class.getName());
+
+	private static final String SERVICE_EC2 = "ec2";
+	private static final String SERVICE_RDS = "rds";
+	private static final String SERVICE_CLOUD_FORMATION = "cloudformation";
+
+	private final ClientConfiguration clientConfig;
+	private final ConcurrentMap<String, AmazonWebServiceClient> clients = new ConcurrentHashMap<String, AmazonWebServiceClient>();
+
+	public AmazonClientRegistry(ClientConfiguration clientConfig) {
+		this.clientConfig = clientConfig;
+	}
+
+	/**
+	 * @param credentials
+	 * @param endPoint The endpoint to use or null for the default endpoint of the service
+	 * @return A shared client for the given endpoint and credentials
+	 */
+	public AmazonEC2Client getEC2Client(AWSCredentials credentials, String endPoint) {
+		AmazonEC2Client client = (AmazonEC2Client) clients.get(getKey(SERVICE_EC2, credentials, endPoint));
+		if(client == null) {
+			client = register(SERVICE_EC2, credentials, endPoint, new AmazonEC2Client(credentials, getConfig(credentials)));
+		}
+		return client;
+	}
+
+	/**
+	 * @param credentials
+	 * @param endPoint The endpoint to use or null for the default endpoint of the service
+	 * @return A shared client for the given endpoint and credentials
+	 */
+	public AmazonRDSClient getRDSClient(AWSCredentials credentials, String endPoint) {
+		AmazonRDSClient client = (AmazonRDSClient) clients.get(getKey(SERVICE_RDS, credentials, endPoint));
+		if(client == null) {
+			client = register(SERVICE_RDS, credentials, endPoint, new AmazonRDSClient(credentials, getConfig(credentials)));
+		}
+		return client;
+	}
+
+	/**
+	 * @param credentials
+	 * @param endPoint The endpoint to use or null for the default endpoint of the service
+	 * @return A shared client for the given endpoint and credentials
+	 */
+	public AmazonCloudFormationClient getCloudFormationClient(AWSCredentials credentials, String endPoint) {
+		AmazonCloudFormationClient client = (AmazonCloudFormationClient) clients.get(getKey(SERVICE_CLOUD_FORMATION, credentials, endPoint));
+		if(client == null) {
+			client = register(SERVICE_CLOUD_FORMATION, credentials, endPoint, new AmazonCloudFormationClient(credentials, getConfig(credentials)));
+		}
+		return client;
+	}
+
+	/**
+	 * Shuts down all clients and releases their connections.
+	 */
+	public void shutdown() {
+		for(AmazonWebServiceClient client : clients.values()) {
+			try {
+				client.shutdown();
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Could not shut down Amazon client " + client, e);
+			}
+		}
+		clients.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends AmazonWebServiceClient> T register(String service, AWSCredentials credentials, String endPoint, T client) {
+		if(endPoint != null) {
+			client.setEndpoint(endPoint);
+		}
+		RateLimiter.forAccount(credentials.getAWSAccessKeyId()).attach(client);
+
+		AmazonWebServiceClient existing = clients.putIfAbsent(getKey(service, credentials, endPoint), client);
+		if(existing != null) {
+			// another thread was faster, use the client that is already registered
+			client.shutdown();
+			return (T) existing;
+		}
+
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Created " + service + " client for endpoint " + endPoint + " and access key " + credentials.getAWSAccessKeyId());
+		}
+		return client;
+	}
+
+	private ClientConfiguration getConfig(AWSCredentials credentials) {
+		return RateLimiter.forAccount(credentials.getAWSAccessKeyId()).configure(clientConfig);
+	}
+
+	private static String getKey(String service, AWSCredentials credentials, String endPoint) {
+		// include the secret key via its hash only to not keep an additional copy of it around
+		return service + "|" + endPoint + "|" + credentials.getAWSAccessKeyId() + "|" + credentials.getAWSSecretKey().hashCode();
+	}
+}
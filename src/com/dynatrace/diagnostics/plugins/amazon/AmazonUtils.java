@@ -14,9 +14,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -25,13 +24,6 @@ import java.util.Properties;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.ec2.AmazonEC2Client;
@@ -40,10 +32,6 @@ import com.amazonaws.services.ec2.model.DescribeRegionsRequest;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.Region;
 import com.amazonaws.services.ec2.model.Tag;
-import com.amazonaws.util.json.JSONArray;
-import com.amazonaws.util.json.JSONException;
-import com.amazonaws.util.json.JSONObject;
-import com.amazonaws.util.json.JSONTokener;
 import com.dynatrace.diagnostics.sdk.MonitorEnvironment30Impl;
 import com.dynatrace.diagnostics.sdk.MonitorMeasure30Impl;
 
@@ -55,14 +43,26 @@ import com.dynatrace.diagnostics.sdk.MonitorMeasure30Impl;
 public class AmazonUtils {
 	private static final Logger log = Logger.getLogger(AmazonUtils.class.getName());
 
-	private static final String[] URL_JSON_PRICES = new String[] {
+	static final String[] URL_JSON_PRICES = new String[] {
 		"http://aws.amazon.com/ec2/pricing/pricing-on-demand-instances.json",
 		"http://a0.awsstatic.com/pricing/1/ec2/mswin-od.min.js",
 		"http://a0.awsstatic.com/pricing/1/ec2/linux-od.min.js",
 	};
 
+	// the path of each service and of the pricing files below the base url of a local stand-in for Amazon
+	static final String SERVICE_EC2 = "ec2";
+	static final String SERVICE_RDS = "rds";
+	static final String SERVICE_CLOUD_FORMATION = "cloudformation";
+	static final String PATH_PRICING = "pricing";
+
+	// how many instances are tagged with one request
+	static final int MAX_TAG_RESOURCES = 500;
+
+	// the credentials file is only read once
+	private static Properties credentialProperties;
+
 	public static List<String> getAccountNames() throws IOException {
-		Properties prop = AmazonUtils.readProperties();
+		Properties prop = getCredentialProperties();
 
 		List<String> names = new ArrayList<String>();
 		Enumeration<?> propertyNames = prop.propertyNames();
@@ -76,8 +76,25 @@ public class AmazonUtils {
 		return names;
 	}
 
+	/**
+	 * @param baseUrl The url of a local stand-in for Amazon, null for Amazon itself
+	 * @return The urls of the pricing files
+	 */
+	public static String[] getPriceUrls(String baseUrl) {
+		if(baseUrl == null) {
+			return URL_JSON_PRICES;
+		}
+
+		// the stand-in serves the files with the same name below its base url
+		String[] urls = new String[URL_JSON_PRICES.length];
+		for(int i = 0;i < URL_JSON_PRICES.length;i++) {
+			urls[i] = baseUrl + "/" + PATH_PRICING + URL_JSON_PRICES[i].substring(URL_JSON_PRICES[i].lastIndexOf('/'));
+		}
+		return urls;
+	}
+
 	public static BasicAWSCredentials getAwsCredentials(String name) throws IOException {
-		Properties prop = AmazonUtils.readProperties();
+		Properties prop = getCredentialProperties();
 
 		String accessKey = prop.getProperty("accessKey." + name);
 		String secretKey = prop.getProperty("secretKey." + name);
@@ -116,33 +133,9 @@ public class AmazonUtils {
 	}
 
 	public static String getUsageTag(Instance instance) {
-		String usage = getInstanceTag(instance, AmazonAccountMonitor.TAG_USAGE);
-
-		// try to find the Usage-Tag automatically for some instances until we tag them all correctly
-		// changes here should also be reflected in "SetUsageTags"
-		if(usage.equals(AmazonAccountMonitor.TAG_UNKNOWN)) {
-			String guardian = getInstanceTag(instance, "Client.Guardian");
-			// for now we put all untagged instances with "GDN-key" into UEMaaS as this is what most people in Gdansk work on
-			if(!guardian.equals(AmazonAccountMonitor.TAG_UNKNOWN) /*|| !stack.equals(TAG_UNKNOWN)*/ ||
-					(instance.getKeyName() != null && instance.getKeyName().equals("GDN-key"))) {
-				usage = "UEMaaS";
-			} else if(getInstanceTag(instance, "Name").contains("CoE") ||
-					(instance.getKeyName() != null && instance.getKeyName().equals("coe-demo"))) {
-				usage = "CoE";
-			} else if(!getInstanceTag(instance, "DemoId").equals(AmazonAccountMonitor.TAG_UNKNOWN)) {
-				usage = "CloudDemo";
-			} else if(instance.getKeyName() != null && instance.getKeyName().equals("EasyTravelLargeDeployment")) {
-				usage = "easyTravelNG";
-			} else if(!getInstanceTag(instance, "aws:elasticmapreduce:instance-group-role").equals(AmazonAccountMonitor.TAG_UNKNOWN)) {
-				usage = "MapReduce";
-			} else if(getInstanceTag(instance, "Name").toLowerCase().contains("puppet")) {
-				usage = "Puppet";
-			} else if(getInstanceTag(instance, "Name").toLowerCase().contains("cloudera")) {
-				usage = "Cloudera";
-			}
-		}
-
-		return usage;
+		// try to find the Usage-Tag automatically for some instances until we tag them all correctly,
+		// the rules are shared with "SetUsageTags"
+		return TagRules.DEFAULT.getUsage(TagRules.Tags.of(instance));
 	}
 
 	public static String getOwnerTag(Instance instance) {
@@ -187,6 +180,33 @@ public class AmazonUtils {
 		client.createTags(ctr);
 	}
 
+	/**
+	 * Set the Usage-Tag on all the given instances with as few requests as possible.
+	 *
+	 * @param client
+	 * @param value
+	 * @param instanceIds
+	 * @return The number of requests that were sent
+	 */
+	public static int setUsageTags(AmazonEC2Client client, String value, Collection<String> instanceIds) {
+		List<Tag> tags = new ArrayList<Tag>();
+		tags.add(new Tag(TAG_USAGE, value));
+
+		List<String> ids = new ArrayList<String>(instanceIds);
+		int requests = 0;
+		for(int start = 0;start < ids.size();start += MAX_TAG_RESOURCES) {
+			List<String> batch = ids.subList(start, Math.min(ids.size(), start + MAX_TAG_RESOURCES));
+			log.info("Setting tag " + value + " on " + batch.size() + " instances: " + batch);
+
+			CreateTagsRequest ctr = new CreateTagsRequest();
+			ctr.setTags(tags);
+			ctr.setResources(batch);
+			client.createTags(ctr);
+			requests++;
+		}
+		return requests;
+	}
+
 	public static String getInstanceDescription(Instance instance) {
 		return "Instance: " + instance.getInstanceId() + ": " + AmazonUtils.getInstanceTag(instance,  "Name") +
 				": Started at " + instance.getLaunchTime() +
@@ -197,9 +217,28 @@ public class AmazonUtils {
 				", Tags: " + instance.getTags();
 	}
 
+	/**
+	 * @param clientConfig
+	 * @param name
+	 * @return A client for the given account which is limited by the {@link RateLimiter} of the account
+	 * @throws IOException
+	 */
+	public static AmazonEC2Client createEC2Client(ClientConfiguration clientConfig, String name) throws IOException {
+		BasicAWSCredentials credentials = getAwsCredentials(name);
+		RateLimiter limiter = RateLimiter.forAccount(credentials.getAWSAccessKeyId());
+		AmazonEC2Client client = limiter.attach(new AmazonEC2Client(credentials, limiter.configure(clientConfig)));
+
+		// allows to run against a local stand-in for Amazon, see testsrc/AmazonStandIn
+		String endpoint = getCredentialProperties().getProperty("endpoint");
+		if(endpoint != null && !endpoint.trim().isEmpty()) {
+			client.setEndpoint(endpoint.trim() + "/" + SERVICE_EC2);
+		}
+		return client;
+	}
+
 	public static Map<String, String> getEndpoints(ClientConfiguration clientConfig, String name) throws IOException {
 		final Map<String, String> endPoints = new HashMap<String, String>();
-		AmazonEC2Client client = new AmazonEC2Client(getAwsCredentials(name), clientConfig);
+		AmazonEC2Client client = createEC2Client(clientConfig, name);
 		DescribeRegionsRequest regionsRequest = new DescribeRegionsRequest();
 		List<Region> regions = client.describeRegions(regionsRequest).getRegions();
 		for(Region region : regions) {
@@ -213,6 +252,13 @@ public class AmazonUtils {
 	}
 
 
+	private static synchronized Properties getCredentialProperties() throws IOException {
+		if(credentialProperties == null) {
+			credentialProperties = readProperties();
+		}
+		return credentialProperties;
+	}
+
 	public static Properties readProperties() throws IOException {
 		Properties prop = new Properties();
 		/* Template for the properties file in testsrc/AwsCredentials.properties:
@@ -220,6 +266,8 @@ public class AmazonUtils {
 # http://aws.amazon.com/security-credentials
 accessKey =
 secretKey =
+# optionally the base url of a local AmazonStandIn from testsrc
+endpoint =
 		 */
 		FileInputStream inStream = new FileInputStream("testsrc/AwsCredentials.properties");
 		try {
@@ -242,111 +290,6 @@ secretKey =
 		env.internalGetMeasures().add(measure);
 	}
 
-	private static final Map<String,String> JSON_REGION_MAP = new HashMap<String, String>();
-	static {
-	    JSON_REGION_MAP.put("us-east", "us-east-1");
-	    JSON_REGION_MAP.put("us-west-2", "us-west-2");
-	    JSON_REGION_MAP.put("us-west", "us-west-1");
-	    JSON_REGION_MAP.put("eu-ireland", "eu-west-1");
-	    JSON_REGION_MAP.put("apac-sin", "ap-southeast-1");
-	    JSON_REGION_MAP.put("apac-tokyo", "ap-northeast-1");
-	    JSON_REGION_MAP.put("apac-syd", "ap-southeast-2");
-	    JSON_REGION_MAP.put("sa-east-1", "sa-east-1");
-	}
-
-	public static String readAmazonPriceProperties() throws IOException {
-		StringBuffer pricing = new StringBuffer();
-		for(String urlJson : URL_JSON_PRICES) {
-			final URI url;
-			try {
-				url = new URI(urlJson);
-			} catch (URISyntaxException e) {
-				throw new IOException(e);
-			}
-
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpGet httpGet = new HttpGet(url);
-			HttpResponse response = httpclient.execute(httpGet);
-
-			try {
-				int statusCode = response.getStatusLine().getStatusCode();
-				if(statusCode != 200) {
-					log.warning("Had HTTP StatusCode " + statusCode + " for request: " + url);
-					return null;
-				}
-			    HttpEntity entity = response.getEntity();
-
-			    // do conversion to string manually, avoid dependency on commons-io for now
-			    String jsonTxt = readToString(entity.getContent());
-
-			    // adjust jsonp to json
-			    if(jsonTxt.startsWith("/*")) {
-			    	int endPos = jsonTxt.indexOf("*/");
-			    	jsonTxt = jsonTxt.substring(endPos+2);
-			    }
-			    jsonTxt = jsonTxt.replace("callback(", "");
-			    if(jsonTxt.trim().endsWith(");")) {
-			    	jsonTxt = jsonTxt.substring(0, jsonTxt.length()-2);
-			    }
-
-			    // use JSONObject to walk the tree of json-elements
-		        JSONTokener tokener = new JSONTokener(jsonTxt);
-		        JSONObject json = new JSONObject(tokener);
-		        JSONObject config = json.getJSONObject("config");
-
-		        JSONArray regions = config.getJSONArray("regions");
-		        for(int i = 0;i < regions.length();i++) {
-		        	JSONObject regionMap = regions.getJSONObject(i);
-		        	String region = (String) regionMap.get("region");
-					log.info("Found region in Amazon Pricing json file: " + region);
-
-					JSONArray instanceTypes = regionMap.getJSONArray("instanceTypes");
-					for(int j = 0;j < instanceTypes.length();j++) {
-						JSONObject instanceTypeMap = instanceTypes.getJSONObject(j);
-						JSONArray sizes = instanceTypeMap.getJSONArray("sizes");
-						for(int k = 0;k < sizes.length();k++) {
-							JSONObject sizeMap = sizes.getJSONObject(k);
-							String size = sizeMap.getString("size");
-							JSONArray values = sizeMap.getJSONArray("valueColumns");
-							for(int l = 0;l < values.length();l++) {
-								JSONObject valueMap = values.getJSONObject(l);
-								String osName = valueMap.getString("name");
-								if(osName.equals("mswin")) {
-									osName = "windows";
-								} else if (osName.equals("os")) {
-									if(urlJson.contains("mswin-")) {
-										osName = "windows";
-									} else {
-										osName = "linux";
-									}
-								}
-								JSONObject prices = valueMap.getJSONObject("prices");
-								String price = prices.getString("USD");
-
-								String mappedRegion = JSON_REGION_MAP.get(region);
-								if(mappedRegion == null) {
-									throw new IllegalStateException("Did not find a mapping for region " + region + ", size: " + size + ", osName: " + osName + ", price: " + price + ", having mappings: " + JSON_REGION_MAP);
-								}
-								// add to properties
-								// cost.us-east-1.m1.small.linux=0.060
-								pricing.append("cost." + mappedRegion + "." + size + "." + osName + "=" + price + "\n");
-							}
-						}
-					}
-		        }
-
-			    // ensure all content is taken out to free resources
-			    EntityUtils.consume(entity);
-			} catch (JSONException e) {
-				throw new IOException(e);
-			} finally {
-			    httpclient.getConnectionManager().shutdown();
-			}
-		}
-
-		return pricing.toString();
-	}
-
 	protected static String readToString(InputStream stream) throws IOException {
 		StringBuilder inputStringBuilder = new StringBuilder();
 		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
@@ -0,0 +1,111 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: ApiStatistics.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+
+/**
+ * Counts the requests that one unit of work sends to Amazon, i.e. calls, retries,
+ * throttled requests, the time until Amazon answered and the size of the responses.
+ *
+ * The clients of the Amazon SDK execute requests synchronously on the calling thread, so
+ * the statistics of the unit that is currently running are attached to the thread via
+ * {@link #attach(ApiStatistics)} and the {@link RateLimiter} of the clients records into
+ * {@link #current()}. Requests which are sent outside of a unit, e.g. when refreshing the
+ * endpoints, are not counted.
+ *
+ * The values are written by the thread which runs the unit and read by the thread
+ * which executes the monitor, possibly while a unit which did not finish in time is
+ * still running.
+ */
+public class ApiStatistics {
+	private static final ThreadLocal<ApiStatistics> CURRENT = new ThreadLocal<ApiStatistics>();
+
+	private int calls = 0;
+	private int retries = 0;
+	private int throttled = 0;
+	// in ns, summed up over all calls
+	private long latency = 0;
+	private long bytes = 0;
+
+	// when the current call was sent, only one call is running per unit at a time
+	private long callStart = 0;
+
+	/**
+	 * @return The statistics of the unit which is running on the current thread, null if none
+	 */
+	public static ApiStatistics current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Record the requests of the current thread in the given statistics until they
+	 * are attached to another one.
+	 *
+	 * @param statistics The statistics, null to stop recording
+	 */
+	public static void attach(ApiStatistics statistics) {
+		if(statistics == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(statistics);
+		}
+	}
+
+	public synchronized void onCallStart() {
+		callStart = System.nanoTime();
+	}
+
+	/**
+	 * @param bytesReceived The size of the response, 0 if the call failed or the size is not known
+	 */
+	public synchronized void onCallEnd(long bytesReceived) {
+		calls++;
+		if(callStart != 0) {
+			latency += System.nanoTime() - callStart;
+			callStart = 0;
+		}
+		bytes += bytesReceived;
+	}
+
+	/**
+	 * @param wasThrottled If the request is retried because Amazon throttled it
+	 */
+	public synchronized void onRetry(boolean wasThrottled) {
+		retries++;
+		if(wasThrottled) {
+			throttled++;
+		}
+	}
+
+	public synchronized int getCalls() {
+		return calls;
+	}
+
+	public synchronized int getRetries() {
+		return retries;
+	}
+
+	public synchronized int getThrottled() {
+		return throttled;
+	}
+
+	/**
+	 * @return The time in ms until Amazon answered, summed up over all calls including their retries
+	 */
+	public synchronized double getLatency() {
+		return latency / 1000.0 / 1000;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return calls + " calls, " + retries + " retries, " + throttled + " throttled, " + getLatency() + "ms, " + bytes + " bytes";
+	}
+}
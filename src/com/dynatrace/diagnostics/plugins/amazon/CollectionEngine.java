@@ -0,0 +1,204 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: CollectionEngine.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+/**
+ * Runs the units of work of one monitor execution, i.e. the describe-calls for one service
+ * in one region, concurrently on a bounded pool of worker threads.
+ *
+ * Each unit has its own deadline which starts when a worker picks it up, so a region which
+ * does not respond only causes the results of that region to be missing instead of
+ * stalling the whole run.
+ */
+public class CollectionEngine {
+	private static final Logger log = Logger.getLogger(CollectionEngine.class.getName());
+
+	private final ExecutorService executor;
+	private final long unitTimeoutMs;
+
+	public CollectionEngine(int threads, long unitTimeoutMs) {
+		this.unitTimeoutMs = unitTimeoutMs;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "AmazonAccountMonitor-Collector-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queue the given task for execution.
+	 *
+	 * @param name A readable name of the unit, used for logging
+	 * @param task The task which retrieves the data
+	 * @return A handle which is passed to {@link #await(Unit)} to retrieve the result.
+	 */
+	public <T> Unit<T> submit(String name, Callable<T> task) {
+		Unit<T> unit = new Unit<T>(name, task);
+		unit.future = executor.submit(unit);
+		return unit;
+	}
+
+	/**
+	 * Create a unit which is not executed but reports the given result, e.g. the result of a
+	 * previous run which is still recent enough.
+	 *
+	 * @param name A readable name of the unit, used for logging
+	 * @param result
+	 * @return A handle which is passed to {@link #await(Unit)} to retrieve the result.
+	 */
+	public <T> Unit<T> reuse(String name, final T result) {
+		Unit<T> unit = new Unit<T>(name, new Callable<T>() {
+			@Override
+			public T call() {
+				return result;
+			}
+		});
+		unit.reused = true;
+
+		FutureTask<T> future = new FutureTask<T>(unit.task);
+		future.run();
+		unit.future = future;
+		return unit;
+	}
+
+	/**
+	 * Wait for the given unit to finish, but at most until its deadline is reached.
+	 *
+	 * @param unit
+	 * @return The result of the unit or null if it did not finish in time
+	 * @throws Exception If the unit failed, the original exception is re-thrown here
+	 */
+	public <T> T await(Unit<T> unit) throws Exception {
+		// the deadline starts when the unit is picked up by a worker, but we do not wait forever for
+		// a unit that is still queued behind others
+		final long maxDeadline = unit.submitted + 2*unitTimeoutMs;
+		while(true) {
+			long now = System.currentTimeMillis();
+			long started = unit.started;
+			long deadline = Math.min((started == 0 ? now : started) + unitTimeoutMs, maxDeadline);
+			try {
+				return unit.future.get(Math.max(deadline - now, 1), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				now = System.currentTimeMillis();
+				started = unit.started;
+				if((started != 0 && now >= started + unitTimeoutMs) || now >= maxDeadline) {
+					unit.future.cancel(true);
+					log.warning("Retrieving " + unit.name + " did not finish within " + unitTimeoutMs + "ms, results are missing for this run");
+					return null;
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof Exception) {
+					throw (Exception)cause;
+				}
+				if(cause instanceof Error) {
+					throw (Error)cause;
+				}
+				throw new Exception(cause);
+			}
+		}
+	}
+
+	/**
+	 * Cancel all of the given units which are still queued or running, e.g. after
+	 * one unit failed and the results of the others are not needed any more.
+	 *
+	 * @param units
+	 */
+	public void cancel(Collection<? extends Unit<?>> units) {
+		for(Unit<?> unit : units) {
+			unit.future.cancel(true);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Handle for one submitted unit of work.
+	 */
+	public static class Unit<T> implements Callable<T> {
+		private final String name;
+		private final Callable<T> task;
+		private final long submitted = System.currentTimeMillis();
+		private final ApiStatistics statistics = new ApiStatistics();
+
+		private volatile long started = 0;
+		private volatile long finished = 0;
+		private Future<T> future;
+		private boolean reused = false;
+
+		private Unit(String name, Callable<T> task) {
+			this.name = name;
+			this.task = task;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return How many milliseconds the unit was running so far, 0 if it was not started yet
+		 */
+		public long getDuration() {
+			long start = started;
+			if(start == 0) {
+				return 0;
+			}
+			long end = finished;
+			return (end == 0 ? System.currentTimeMillis() : end) - start;
+		}
+
+		/**
+		 * @return true if the unit reports a previous result instead of retrieving it, see {@link CollectionEngine#reuse(String, Object)}
+		 */
+		public boolean isReused() {
+			return reused;
+		}
+
+		/**
+		 * @return The requests which the unit sent to Amazon so far
+		 */
+		public ApiStatistics getStatistics() {
+			return statistics;
+		}
+
+		@Override
+		public T call() throws Exception {
+			started = System.currentTimeMillis();
+			ApiStatistics.attach(statistics);
+			try {
+				return task.call();
+			} finally {
+				ApiStatistics.attach(null);
+				finished = System.currentTimeMillis();
+			}
+		}
+	}
+}
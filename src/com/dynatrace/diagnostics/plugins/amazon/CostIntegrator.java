@@ -0,0 +1,256 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: CostIntegrator.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Computes for how many hours each instance was running since the previous run, so
+ * that costs are charged for the actual running time instead of the time between two
+ * runs.
+ *
+ * For each running instance it is remembered until when it was charged already. An
+ * instance which is seen for the first time is charged from its launch time, but at
+ * most since the start of the interval. An instance which stopped or terminated is
+ * charged until the time it changed its state, if that is known, and is removed
+ * afterwards. This way also instances which were started and terminated between two
+ * runs are charged, as long as Amazon still reports them.
+ *
+ * Instances which are not reported at all, e.g. because their region could not be
+ * retrieved, are kept for some time, so that the missed time is charged as soon as they
+ * are reported again.
+ *
+ * The accumulators are kept in parallel arrays together with an open-addressing hash
+ * table of indexes, which is rebuilt on every run and thereby drops removed instances.
+ *
+ * Not thread-safe, only used from the execution of the monitor.
+ */
+public class CostIntegrator {
+	private static final Logger log = Logger.getLogger(CostIntegrator.class.getName());
+
+	private static final double HOUR_IN_MS = 60*60*1000;
+
+	// how long instances are kept which are not reported any more
+	private static final long MAX_UNSEEN_MS = 24*60*60*1000;
+
+	// the instances which were running in the previous run, indexed by entry
+	private String[] ids = new String[0];
+	private int[] accounts = new int[0];
+	private int[] regions = new int[0];
+	// until when the instance was charged
+	private long[] chargedUntil = new long[0];
+	// when the instance was reported the last time
+	private long[] lastSeen = new long[0];
+	private int size = 0;
+
+	// open-addressing hash table with linear probing, contains entry+1, 0 for an empty slot
+	private int[] slots = new int[1];
+
+	/**
+	 * Compute the running time of all instances in the inventory and remember the
+	 * running ones for the next run.
+	 *
+	 * @param inventory
+	 * @param stoppedStates The ids of the states in {@link SymbolTable#STATES} which do not incur costs
+	 * @param from The start of the interval, used for instances which were not seen before
+	 * @param now The end of the interval
+	 * @return The running time in hours for each row of the inventory
+	 */
+	public double[] integrate(Inventory inventory, BitSet stoppedStates, long from, long now) {
+		double[] hours = new double[inventory.size()];
+
+		int capacity = inventory.size() + size;
+		String[] newIds = new String[capacity];
+		int[] newAccounts = new int[capacity];
+		int[] newRegions = new int[capacity];
+		long[] newChargedUntil = new long[capacity];
+		long[] newLastSeen = new long[capacity];
+		int newSize = 0;
+
+		// remembers which of the previous entries were reported again
+		boolean[] seen = new boolean[size];
+
+		for(int row = 0;row < inventory.size();row++) {
+			String id = inventory.getId(row);
+			int account = inventory.getAccount(row);
+			int region = inventory.getRegion(row);
+			int entry = indexOf(id, account, region);
+
+			// charge from where we stopped last time, but not for the time before the instance was (re-)started
+			long start = entry == -1 ? from : chargedUntil[entry];
+			start = Math.max(start, inventory.getLaunchTime(row));
+			if(entry != -1) {
+				seen[entry] = true;
+			}
+
+			boolean running = !stoppedStates.get(inventory.getState(row));
+			long end;
+			if(running) {
+				end = now;
+			} else {
+				// charge stopped instances until they stopped if we know when this happened
+				long stateTime = inventory.getStateTime(row);
+				end = stateTime == 0 ? start : Math.min(stateTime, now);
+			}
+			hours[row] = Math.max(0, end - start) / HOUR_IN_MS;
+
+			// only running instances need to be remembered
+			if(running) {
+				newIds[newSize] = id;
+				newAccounts[newSize] = account;
+				newRegions[newSize] = region;
+				newChargedUntil[newSize] = Math.max(start, now);
+				newLastSeen[newSize] = now;
+				newSize++;
+			}
+		}
+
+		// keep instances which were not reported for a while to charge the missed time later
+		for(int entry = 0;entry < size;entry++) {
+			if(!seen[entry] && now - lastSeen[entry] < MAX_UNSEEN_MS) {
+				newIds[newSize] = ids[entry];
+				newAccounts[newSize] = accounts[entry];
+				newRegions[newSize] = regions[entry];
+				newChargedUntil[newSize] = chargedUntil[entry];
+				newLastSeen[newSize] = lastSeen[entry];
+				newSize++;
+			}
+		}
+
+		ids = newIds;
+		accounts = newAccounts;
+		regions = newRegions;
+		chargedUntil = newChargedUntil;
+		lastSeen = newLastSeen;
+		size = newSize;
+		rehash();
+
+		return hours;
+	}
+
+	/**
+	 * Store the accumulators, so that a restart continues charging where the previous run stopped.
+	 *
+	 * Instances which were running and reported in the last run are stored without times, so
+	 * their entries do not change from run to run and are not written again.
+	 *
+	 * @param store
+	 * @param prefix The prefix of the keys in the store
+	 * @param lastCall The end of the interval of the last run, which is persisted separately
+	 * @throws IOException
+	 */
+	public void save(StateStore store, String prefix, long lastCall) throws IOException {
+		Map<String, String> values = new HashMap<String, String>(size*2);
+		for(int entry = 0;entry < size;entry++) {
+			boolean current = chargedUntil[entry] == lastCall && lastSeen[entry] == lastCall;
+			values.put(SymbolTable.ACCOUNTS.name(accounts[entry]) + "/" + SymbolTable.REGIONS.name(regions[entry]) + "/" + ids[entry],
+					current ? "" : chargedUntil[entry] + "," + lastSeen[entry]);
+		}
+		store.putAll(prefix, values);
+	}
+
+	/**
+	 * Replace the accumulators with the ones stored via {@link #save(StateStore, String, long)}.
+	 *
+	 * @param store
+	 * @param prefix The prefix of the keys in the store
+	 * @param lastCall The end of the interval of the last run as passed to {@link #save(StateStore, String, long)},
+	 * 		0 if it is not known, then the instances which were running at that time are charged like new ones
+	 */
+	public void load(StateStore store, String prefix, long lastCall) {
+		Map<String, String> values = store.getAll(prefix);
+		ids = new String[values.size()];
+		accounts = new int[values.size()];
+		regions = new int[values.size()];
+		chargedUntil = new long[values.size()];
+		lastSeen = new long[values.size()];
+		size = 0;
+
+		for(Map.Entry<String, String> value : values.entrySet()) {
+			// account names may contain '/', region names and instance ids do not
+			int slash = value.getKey().lastIndexOf('/');
+			int regionSlash = slash <= 0 ? -1 : value.getKey().lastIndexOf('/', slash - 1);
+			int comma = value.getValue().indexOf(',');
+			try {
+				if(regionSlash == -1 || (comma == -1 && !value.getValue().isEmpty())) {
+					throw new NumberFormatException("Expected <account>/<region>/<id>=[<chargedUntil>,<lastSeen>]");
+				}
+				if(value.getValue().isEmpty()) {
+					// running at the last call
+					if(lastCall == 0) {
+						continue;
+					}
+					chargedUntil[size] = lastCall;
+					lastSeen[size] = lastCall;
+				} else {
+					chargedUntil[size] = Long.parseLong(value.getValue().substring(0, comma));
+					lastSeen[size] = Long.parseLong(value.getValue().substring(comma + 1));
+				}
+			} catch (NumberFormatException e) {
+				if(log.isLoggable(Level.FINE)) {
+					log.fine("Ignoring invalid cost accumulator " + value + ": " + e.getMessage());
+				}
+				continue;
+			}
+			accounts[size] = SymbolTable.ACCOUNTS.intern(value.getKey().substring(0, regionSlash));
+			regions[size] = SymbolTable.REGIONS.intern(value.getKey().substring(regionSlash + 1, slash));
+			ids[size] = value.getKey().substring(slash + 1);
+			size++;
+		}
+		rehash();
+	}
+
+	/**
+	 * @return The number of instances which are currently remembered
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int indexOf(String id, int account, int region) {
+		int mask = slots.length - 1;
+		int slot = hash(id) & mask;
+		while(slots[slot] != 0) {
+			int entry = slots[slot] - 1;
+			if(regions[entry] == region && accounts[entry] == account && ids[entry].equals(id)) {
+				return entry;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void rehash() {
+		// keep the table at most half full to keep the probe sequences short
+		int length = 1;
+		while(length < size*2) {
+			length <<= 1;
+		}
+
+		slots = new int[Math.max(length, 2)];
+		int mask = slots.length - 1;
+		for(int entry = 0;entry < size;entry++) {
+			int slot = hash(ids[entry]) & mask;
+			while(slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = entry + 1;
+		}
+	}
+
+	private static int hash(String key) {
+		// spread the higher bits as only the lower bits are used for the slot
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
@@ -2,8 +2,7 @@ package com.dynatrace.diagnostics.plugins.amazon;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Calendar;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
@@ -11,11 +10,13 @@ import java.util.logging.LogRecord;
  * Logs a record with the pattern "YYYY-MM-DD HH:MM:SS LEVEL [CLASS] MESSAGE".
  * Additionally {@link Throwable}s are logged in a separate line.
  *
+ * Records are formatted without locking, each thread uses its own buffer and renders
+ * the timestamp only when the second changes.
+ *
  * @author martin.wurzinger
  */
 public class DefaultFormatter extends Formatter {
 
-    private static final SimpleDateFormat DATE_TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
     // TODO: move to BaseConstants
@@ -25,14 +26,21 @@ public class DefaultFormatter extends Formatter {
     public static final String BRACKET_RIGHT = "]";
     public static final String DOT = ".";
 
-    private static final StringBuilder BUILDER = new StringBuilder();
-    private static final Date DATE = new Date();
+    // buffers which grew larger than this because of big messages are not kept
+    private static final int MAX_BUILDER_CAPACITY = 16*1024;
+
+    private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
 
     private static final int APP_DEFAULT_LENGTH = 7;
     private static final int LEVEL_DEFAULT_LENGTH = 7;
     private static final int CLASS_DEFAULT_LENGTH = 12;
 
-    private static String appId = null;
+    private static volatile String appId = null;
 
     /** Allows to provide an application id for cases
      * where multiple applications log to the same output, e.g.
@@ -52,26 +60,38 @@ public class DefaultFormatter extends Formatter {
      * @return a formatted log record
      */
     @Override
-	public synchronized String format(LogRecord record) {
+	public String format(LogRecord record) {
+        Buffer buffer = BUFFER.get();
+        if (buffer.builder.capacity() > MAX_BUILDER_CAPACITY) {
+            buffer.builder = new StringBuilder();
+        }
+
         // clear string builder content of previous runs
-        BUILDER.setLength(0);
+        StringBuilder builder = buffer.builder;
+        builder.setLength(0);
 
         // build log message
-        appendDateTime(record);
-        appendApplication();
-        appendLevel(record);
-        appendClass(record);
-        appendMessage(record);
-        appendThrowable(record);
-        appendNewLine();
-
-        return BUILDER.toString();
+        appendDateTime(buffer, record);
+        appendApplication(builder);
+        appendLevel(builder, record);
+        appendClass(builder, record);
+        appendMessage(builder, record);
+        appendThrowable(builder, record);
+        appendNewLine(builder);
+
+        return builder.toString();
     }
 
-	private void appendDateTime(LogRecord record) {
-        DATE.setTime(record.getMillis());
-        BUILDER.append(DATE_TIME_FORMAT.format(DATE));
-        BUILDER.append(WS);
+	private void appendDateTime(Buffer buffer, LogRecord record) {
+        long millis = record.getMillis();
+        long second = millis >= 0 ? millis / 1000 : (millis - 999) / 1000;
+        if (second != buffer.second) {
+            buffer.renderDateTime(millis);
+            buffer.second = second;
+        }
+
+        buffer.builder.append(buffer.dateTime);
+        buffer.builder.append(WS);
     }
 
     public static String repeat(String str, int repeat)
@@ -116,82 +136,128 @@ public class DefaultFormatter extends Formatter {
         return buf.toString();
     }
 
-    private void appendApplication() {
-		if(appId != null) {
-			BUILDER.append(appId.substring(0, appId.length() > APP_DEFAULT_LENGTH ? APP_DEFAULT_LENGTH : appId.length()));
-	        BUILDER.append(repeat(WS, APP_DEFAULT_LENGTH - appId.length()));
-	        BUILDER.append(WS);
+    private void appendApplication(StringBuilder builder) {
+		String id = appId;
+		if(id != null) {
+			builder.append(id, 0, id.length() > APP_DEFAULT_LENGTH ? APP_DEFAULT_LENGTH : id.length());
+	        appendPadding(builder, APP_DEFAULT_LENGTH - id.length());
+	        builder.append(WS);
 		}
 	}
 
-    private synchronized void appendLevel(LogRecord record) {
+    private void appendLevel(StringBuilder builder, LogRecord record) {
         String levelName = record.getLevel().getName();
 
-        BUILDER.append(levelName);
-        BUILDER.append(repeat(WS, LEVEL_DEFAULT_LENGTH - levelName.length()));
-        BUILDER.append(WS);
+        builder.append(levelName);
+        appendPadding(builder, LEVEL_DEFAULT_LENGTH - levelName.length());
+        builder.append(WS);
     }
 
-    private void appendClass(LogRecord record) {
+    private void appendClass(StringBuilder builder, LogRecord record) {
         String className = record.getLoggerName();
+        int start = 0;
         int lastdot = className.lastIndexOf(DOT);
         if (lastdot > 0) {
-            className = className.substring(lastdot + 1);
+            start = lastdot + 1;
         }
 
-        BUILDER.append(BRACKET_LEFT);
-        BUILDER.append(className);
-        BUILDER.append(BRACKET_RIGHT);
+        builder.append(BRACKET_LEFT);
+        builder.append(className, start, className.length());
+        builder.append(BRACKET_RIGHT);
 
-        BUILDER.append(repeat(WS, CLASS_DEFAULT_LENGTH - className.length()));
+        appendPadding(builder, CLASS_DEFAULT_LENGTH - (className.length() - start));
 
-        BUILDER.append(WS);
+        builder.append(WS);
     }
 
-    private void appendMessage(LogRecord record) {
-        BUILDER.append(formatMessage(record));
+    private static void appendPadding(StringBuilder builder, int count) {
+        for (int i = 0; i < count; i++) {
+            builder.append(' ');
+        }
     }
 
-    private void appendThrowable(LogRecord record) {
+    private void appendMessage(StringBuilder builder, LogRecord record) {
+        builder.append(formatMessage(record));
+    }
+
+    private void appendThrowable(StringBuilder builder, LogRecord record) {
         // log exception
         Throwable throwable = record.getThrown();
         if (throwable == null) {
             return;
         }
 
-        appendThrowableSource(record);
-        appendNewLine();
-        appendStackTrace(throwable);
+        appendThrowableSource(builder, record);
+        appendNewLine(builder);
+        appendStackTrace(builder, throwable);
     }
 
-    private void appendThrowableSource(LogRecord record) {
-        BUILDER.append(COLON);
-        BUILDER.append(WS);
+    private void appendThrowableSource(StringBuilder builder, LogRecord record) {
+        builder.append(COLON);
+        builder.append(WS);
 
         if (record.getSourceClassName() != null) {
-            BUILDER.append(record.getSourceClassName());
+            builder.append(record.getSourceClassName());
         }
         if (record.getSourceMethodName() != null) {
-            BUILDER.append(WS);
-            BUILDER.append(record.getSourceMethodName());
+            builder.append(WS);
+            builder.append(record.getSourceMethodName());
         }
     }
 
 
-    private void appendStackTrace(Throwable throwable) {
+    private void appendStackTrace(StringBuilder builder, Throwable throwable) {
         try {
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
             throwable.printStackTrace(pw);
             pw.close();
-            BUILDER.append(sw.toString());
+            builder.append(sw.toString());
         } catch (Exception ex) {
             //ok to ignore this
         }
     }
 
-    private void appendNewLine() {
-        BUILDER.append(LINE_SEPARATOR);
+    private void appendNewLine(StringBuilder builder) {
+        builder.append(LINE_SEPARATOR);
+    }
+
+    /**
+     * The reusable state of one thread.
+     */
+    private static class Buffer {
+        private StringBuilder builder = new StringBuilder();
+
+        private final Calendar calendar = Calendar.getInstance();
+
+        // "yyyy-MM-dd HH:mm:ss" of the second below
+        private final char[] dateTime = new char[19];
+        private long second = Long.MIN_VALUE;
+
+        private void renderDateTime(long millis) {
+            calendar.setTimeInMillis(millis);
+
+            int year = calendar.get(Calendar.YEAR);
+            put(0, year / 100, 2);
+            put(2, year % 100, 2);
+            dateTime[4] = '-';
+            put(5, calendar.get(Calendar.MONTH) + 1, 2);
+            dateTime[7] = '-';
+            put(8, calendar.get(Calendar.DAY_OF_MONTH), 2);
+            dateTime[10] = ' ';
+            put(11, calendar.get(Calendar.HOUR_OF_DAY), 2);
+            dateTime[13] = ':';
+            put(14, calendar.get(Calendar.MINUTE), 2);
+            dateTime[16] = ':';
+            put(17, calendar.get(Calendar.SECOND), 2);
+        }
+
+        private void put(int pos, int value, int digits) {
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                dateTime[i] = (char)('0' + value % 10);
+                value /= 10;
+            }
+        }
     }
 }
 
@@ -0,0 +1,243 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: EndpointCache.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeRegionsRequest;
+import com.amazonaws.services.ec2.model.Region;
+
+
+/**
+ * Resolves the available Amazon regions and the endpoints of the EC2, RDS and CloudFormation
+ * services in these regions.
+ *
+ * The regions are retrieved once via DescribeRegions and then refreshed in the background
+ * after the configured time, so new regions are picked up without blocking the monitor. If
+ * a {@link StateStore} is provided, the endpoints are stored there so that a restart can
+ * start with the endpoints from the previous run.
+ *
+ * If a base url is set, all services are expected below it as &lt;base url&gt;/&lt;service&gt;/&lt;region&gt;,
+ * which is how the local stand-in for Amazon in testsrc serves them.
+ */
+public class EndpointCache {
+	private static final Logger log = Logger.getLogger(EndpointCache.class.getName());
+
+	// used if the regions can neither be retrieved nor loaded from a previous run
+	private static final String[] DEFAULT_REGIONS = new String[] {
+		"us-east-1",
+		"us-west-1",
+		"us-west-2",
+		"eu-west-1",
+		"ap-northeast-1",
+		"ap-southeast-1",
+		"ap-southeast-2",
+		"sa-east-1",
+	};
+
+	private static final String PREFIX_EC2 = "ec2.";
+	private static final String PREFIX_RDS = "rds.";
+	private static final String PREFIX_CLOUD_FORMATION = "cloudformation.";
+	private static final String DOMAIN = ".amazonaws.com";
+
+	private static final String PREFIX_STATE = "endpoints.";
+
+	private final AmazonClientRegistry clients;
+	private final AWSCredentials credentials;
+	// null for Amazon itself
+	private final String baseUrl;
+	private final StateStore store;
+	private final long refreshIntervalMs;
+
+	private ScheduledExecutorService refresher;
+
+	// replaced as a whole when the regions are refreshed
+	private volatile Endpoints endpoints;
+
+	/**
+	 * @param clients
+	 * @param credentials
+	 * @param baseUrl The url below which all services are available, null to use the endpoints of Amazon
+	 * @param store Where the endpoints are persisted, null if they should not be persisted
+	 * @param refreshIntervalMs How often the regions are retrieved again
+	 */
+	public EndpointCache(AmazonClientRegistry clients, AWSCredentials credentials, String baseUrl, StateStore store, long refreshIntervalMs) {
+		this.clients = clients;
+		this.credentials = credentials;
+		this.baseUrl = baseUrl;
+		this.store = store;
+		this.refreshIntervalMs = refreshIntervalMs;
+	}
+
+	/**
+	 * Make the endpoints available, either from the persisted state of a previous run
+	 * or by retrieving them from Amazon, and start refreshing them in the background.
+	 */
+	public synchronized void start() {
+		endpoints = load();
+		long initialDelay = refreshIntervalMs;
+		if(endpoints == null) {
+			try {
+				refresh();
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Could not retrieve the list of regions from Amazon, using default regions and retrying in the background", e);
+				endpoints = new Endpoints(DEFAULT_REGIONS, baseUrl);
+				initialDelay = Math.min(refreshIntervalMs, TimeUnit.MINUTES.toMillis(5));
+			}
+		}
+
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AmazonAccountMonitor-EndpointRefresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Could not refresh the list of regions from Amazon, keeping the previous endpoints", e);
+				}
+			}
+		}, initialDelay, refreshIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if(refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	/**
+	 * @return The EC2 endpoint for each region
+	 */
+	public Map<String, String> getEC2Endpoints() {
+		return endpoints.ec2;
+	}
+
+	/**
+	 * @return The RDS endpoint for each region
+	 */
+	public Map<String, String> getRDSEndpoints() {
+		return endpoints.rds;
+	}
+
+	/**
+	 * @return The CloudFormation endpoint for each region
+	 */
+	public Map<String, String> getCloudFormationEndpoints() {
+		return endpoints.cloudFormation;
+	}
+
+	/**
+	 * Retrieve the regions from Amazon and replace the current endpoints.
+	 */
+	public void refresh() {
+		AmazonEC2Client client = clients.getEC2Client(credentials, baseUrl == null ? null : baseUrl + "/" + AmazonUtils.SERVICE_EC2);
+		List<Region> regions = client.describeRegions(new DescribeRegionsRequest()).getRegions();
+
+		Map<String, String> ec2 = new HashMap<String, String>();
+		for(Region region : regions) {
+			if(log.isLoggable(Level.FINE)) {
+				log.fine("Region: " + region.getRegionName() + ", endpoint: " + region.getEndpoint());
+			}
+			ec2.put(region.getRegionName(), region.getEndpoint());
+		}
+
+		Endpoints previous = endpoints;
+		endpoints = new Endpoints(ec2, baseUrl);
+		if(previous == null || !previous.ec2.equals(ec2)) {
+			log.info("Using endpoints for regions: " + ec2.keySet());
+		}
+
+		store(endpoints);
+	}
+
+	private Endpoints load() {
+		// a local stand-in might listen on a different port than in the previous run
+		if(store == null || baseUrl != null) {
+			return null;
+		}
+
+		Map<String, String> ec2 = new HashMap<String, String>(store.getAll(PREFIX_STATE));
+		if(ec2.isEmpty()) {
+			return null;
+		}
+
+		log.info("Loaded endpoints for regions " + ec2.keySet() + " from the previous run");
+		return new Endpoints(ec2, baseUrl);
+	}
+
+	private void store(Endpoints current) {
+		if(store == null) {
+			return;
+		}
+
+		try {
+			store.putAll(PREFIX_STATE, current.ec2);
+			store.sync();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not write endpoints", e);
+		}
+	}
+
+	/**
+	 * The endpoints of all services, derived from the list of regions.
+	 */
+	private static class Endpoints {
+		private final Map<String, String> ec2;
+		private final Map<String, String> rds;
+		private final Map<String, String> cloudFormation;
+
+		private Endpoints(String[] regions, String baseUrl) {
+			this(toEC2Endpoints(regions, baseUrl), baseUrl);
+		}
+
+		private Endpoints(Map<String, String> ec2, String baseUrl) {
+			Map<String, String> rds = new HashMap<String, String>();
+			Map<String, String> cloudFormation = new HashMap<String, String>();
+			for(String region : ec2.keySet()) {
+				if(baseUrl == null) {
+					rds.put(region, PREFIX_RDS + region + DOMAIN);
+					cloudFormation.put(region, PREFIX_CLOUD_FORMATION + region + DOMAIN);
+				} else {
+					rds.put(region, baseUrl + "/" + AmazonUtils.SERVICE_RDS + "/" + region);
+					cloudFormation.put(region, baseUrl + "/" + AmazonUtils.SERVICE_CLOUD_FORMATION + "/" + region);
+				}
+			}
+
+			this.ec2 = Collections.unmodifiableMap(ec2);
+			this.rds = Collections.unmodifiableMap(rds);
+			this.cloudFormation = Collections.unmodifiableMap(cloudFormation);
+		}
+
+		private static Map<String, String> toEC2Endpoints(String[] regions, String baseUrl) {
+			Map<String, String> ec2 = new HashMap<String, String>();
+			for(String region : regions) {
+				ec2.put(region, baseUrl == null ? PREFIX_EC2 + region + DOMAIN : baseUrl + "/" + AmazonUtils.SERVICE_EC2 + "/" + region);
+			}
+			return ec2;
+		}
+	}
+}
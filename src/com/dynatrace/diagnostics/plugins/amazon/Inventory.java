@@ -0,0 +1,256 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: Inventory.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Compact, column-oriented list of instances which keeps only the attributes that
+ * are needed for counting and pricing them.
+ *
+ * Each instance is a row, all attributes except the id are stored as ids from the
+ * {@link SymbolTable}s, so the Amazon model objects can be discarded as soon as a page
+ * of results was added.
+ *
+ * Used for EC2 and RDS instances, RDS instances do not have usage or owner and use
+ * {@link PriceTable#OS_NONE}.
+ *
+ * Instances are looked up only by id, so an inventory must only contain instances of
+ * one account before it is merged with others.
+ *
+ * Not thread-safe, each collection thread builds its own inventory which are merged
+ * afterwards via {@link #addAll(Inventory)}. Inventories which are kept across runs are
+ * not changed after they were handed out, updates are applied to a {@link #copy()}.
+ */
+public class Inventory {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private String[] ids;
+	// ids in SymbolTable.ACCOUNTS
+	private int[] accounts;
+	// ids in SymbolTable.REGIONS
+	private int[] regions;
+	// ids in SymbolTable.INSTANCE_TYPES
+	private int[] types;
+	// ids in SymbolTable.STATES
+	private int[] states;
+	// ids in SymbolTable.TAGS, -1 if not applicable
+	private int[] usages;
+	private int[] owners;
+	// one of the PriceTable.OS_* constants
+	private byte[] os;
+	// in milliseconds, 0 if not known
+	private long[] launchTimes;
+	// when the instance entered its current state in milliseconds, 0 if not known
+	private long[] stateTimes;
+
+	private int size = 0;
+
+	// row of each id, only built when rows are looked up by id
+	private Map<String, Integer> rows;
+
+	public Inventory() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public Inventory(int capacity) {
+		capacity = Math.max(capacity, 1);
+		ids = new String[capacity];
+		accounts = new int[capacity];
+		regions = new int[capacity];
+		types = new int[capacity];
+		states = new int[capacity];
+		usages = new int[capacity];
+		owners = new int[capacity];
+		os = new byte[capacity];
+		launchTimes = new long[capacity];
+		stateTimes = new long[capacity];
+	}
+
+	/**
+	 * @return The row of the added instance
+	 */
+	public int add(String id, int account, int region, int type, int state, int usage, int owner, int osType, long launchTime, long stateTime) {
+		ensureCapacity(size + 1);
+
+		ids[size] = id;
+		accounts[size] = account;
+		set(size, region, type, state, usage, owner, osType, launchTime, stateTime);
+		if(rows != null) {
+			rows.put(id, size);
+		}
+
+		return size++;
+	}
+
+	/**
+	 * Add the instance or replace the row if an instance with the same id is already part
+	 * of the inventory.
+	 *
+	 * @return The row of the instance
+	 */
+	public int put(String id, int account, int region, int type, int state, int usage, int owner, int osType, long launchTime, long stateTime) {
+		int row = indexOf(id);
+		if(row == -1) {
+			return add(id, account, region, type, state, usage, owner, osType, launchTime, stateTime);
+		}
+
+		set(row, region, type, state, usage, owner, osType, launchTime, stateTime);
+		return row;
+	}
+
+	private void set(int row, int region, int type, int state, int usage, int owner, int osType, long launchTime, long stateTime) {
+		regions[row] = region;
+		types[row] = type;
+		states[row] = state;
+		usages[row] = usage;
+		owners[row] = owner;
+		os[row] = (byte)osType;
+		launchTimes[row] = launchTime;
+		stateTimes[row] = stateTime;
+	}
+
+	/**
+	 * @param id
+	 * @return The row of the instance with the given id or -1 if it is not part of the inventory
+	 */
+	public int indexOf(String id) {
+		if(rows == null) {
+			rows = new HashMap<String, Integer>(size*2);
+			for(int row = 0;row < size;row++) {
+				rows.put(ids[row], row);
+			}
+		}
+
+		Integer row = rows.get(id);
+		return row == null ? -1 : row.intValue();
+	}
+
+	/**
+	 * @return An independent copy of this inventory
+	 */
+	public Inventory copy() {
+		Inventory copy = new Inventory(size);
+		copy.addAll(this);
+		return copy;
+	}
+
+	/**
+	 * Append all rows of the given inventory.
+	 *
+	 * @param other
+	 */
+	public void addAll(Inventory other) {
+		ensureCapacity(size + other.size);
+
+		System.arraycopy(other.ids, 0, ids, size, other.size);
+		System.arraycopy(other.accounts, 0, accounts, size, other.size);
+		System.arraycopy(other.regions, 0, regions, size, other.size);
+		System.arraycopy(other.types, 0, types, size, other.size);
+		System.arraycopy(other.states, 0, states, size, other.size);
+		System.arraycopy(other.usages, 0, usages, size, other.size);
+		System.arraycopy(other.owners, 0, owners, size, other.size);
+		System.arraycopy(other.os, 0, os, size, other.size);
+		System.arraycopy(other.launchTimes, 0, launchTimes, size, other.size);
+		System.arraycopy(other.stateTimes, 0, stateTimes, size, other.size);
+
+		if(rows != null) {
+			for(int row = size;row < size + other.size;row++) {
+				rows.put(ids[row], row);
+			}
+		}
+
+		size += other.size;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity <= ids.length) {
+			return;
+		}
+
+		int newCapacity = Math.max(capacity, ids.length*2);
+		ids = Arrays.copyOf(ids, newCapacity);
+		accounts = Arrays.copyOf(accounts, newCapacity);
+		regions = Arrays.copyOf(regions, newCapacity);
+		types = Arrays.copyOf(types, newCapacity);
+		states = Arrays.copyOf(states, newCapacity);
+		usages = Arrays.copyOf(usages, newCapacity);
+		owners = Arrays.copyOf(owners, newCapacity);
+		os = Arrays.copyOf(os, newCapacity);
+		launchTimes = Arrays.copyOf(launchTimes, newCapacity);
+		stateTimes = Arrays.copyOf(stateTimes, newCapacity);
+	}
+
+	/**
+	 * The ids from the {@link SymbolTable}s are only stable within one process, so fingerprints
+	 * must not be persisted.
+	 *
+	 * @return A hash of the instances and their type, state, usage and owner which does not
+	 * 		depend on the order of the rows, used to detect whether anything changed between two runs.
+	 */
+	public long fingerprint() {
+		long fingerprint = size;
+		for(int row = 0;row < size;row++) {
+			long hash = ids[row].hashCode();
+			hash = hash*31 + types[row];
+			hash = hash*31 + states[row];
+			hash = hash*31 + usages[row];
+			hash = hash*31 + owners[row];
+			// spread the bits so that the sum does not cancel out changes of single attributes
+			hash *= 0x9E3779B97F4A7C15L;
+			fingerprint += hash ^ (hash >>> 29);
+		}
+		return fingerprint;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String getId(int row) {
+		return ids[row];
+	}
+
+	public int getAccount(int row) {
+		return accounts[row];
+	}
+
+	public int getRegion(int row) {
+		return regions[row];
+	}
+
+	public int getType(int row) {
+		return types[row];
+	}
+
+	public int getState(int row) {
+		return states[row];
+	}
+
+	public int getUsage(int row) {
+		return usages[row];
+	}
+
+	public int getOwner(int row) {
+		return owners[row];
+	}
+
+	public int getOs(int row) {
+		return os[row];
+	}
+
+	public long getLaunchTime(int row) {
+		return launchTimes[row];
+	}
+
+	public long getStateTime(int row) {
+		return stateTimes[row];
+	}
+}
@@ -15,7 +15,6 @@ import java.util.logging.Logger;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.Reservation;
 
@@ -50,15 +49,14 @@ public class ListInstances {
 		int count = 0;
 		final Map<String, String> endPoints = AmazonUtils.getEndpoints(clientConfig, name);
 		for(Map.Entry<String,String> entry : endPoints.entrySet()) {
-			AmazonEC2Client client = new AmazonEC2Client(AmazonUtils.getAwsCredentials(name), clientConfig);
+			AmazonEC2Client client = AmazonUtils.createEC2Client(clientConfig, name);
 			client.setEndpoint(entry.getValue());
-			DescribeInstancesRequest instanceRequest = new DescribeInstancesRequest();
-			List<Reservation> reservations = client.describeInstances(instanceRequest).getReservations();
-
-			for(Reservation reservation : reservations) {
-				for(Instance instance : reservation.getInstances()) {
-					log.info("Instance: " + AmazonUtils.getInstanceDescription(instance));
-					count++;
+			for(List<Reservation> reservations : Pages.reservations(client, Pages.DEFAULT_PAGE_SIZE)) {
+				for(Reservation reservation : reservations) {
+					for(Instance instance : reservation.getInstances()) {
+						log.info("Instance: " + AmazonUtils.getInstanceDescription(instance));
+						count++;
+					}
 				}
 			}
 		}
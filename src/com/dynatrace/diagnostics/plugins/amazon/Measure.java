@@ -7,6 +7,7 @@
  */
 package com.dynatrace.diagnostics.plugins.amazon;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -23,14 +24,30 @@ import java.util.Map;
  * to the base value and also all dynamic values whenever the value is queries
  * via getValue() or getDynamicMeasures().
  *
+ * Dynamic values are kept as primitive doubles in insertion order, an open-addressing
+ * hash table of indexes is used to find the value for a name. Use
+ * {@link #getDynamicMeasureCount()}, {@link #getDynamicKey(int)} and
+ * {@link #getDynamicValue(int)} to read the dynamic values without allocating.
+ *
  * @author cwat-dstadler
  */
 public class Measure {
+	private static final String[] EMPTY_KEYS = new String[0];
+	private static final double[] EMPTY_VALUES = new double[0];
+	private static final int INITIAL_SLOTS = 16;
+
 	private double value;
 	private double adjustmentFactor = 1;
 
 	private String dynamicMeasureName;
-	private Map<String, Double> dynamicMeasures = new HashMap<String, Double>();
+
+	// dynamic values in the order they were added
+	private String[] dynamicKeys = EMPTY_KEYS;
+	private double[] dynamicValues = EMPTY_VALUES;
+	private int dynamicCount = 0;
+
+	// open-addressing hash table with linear probing, contains index+1 into dynamicKeys, 0 for an empty slot
+	private int[] slots;
 
 	public Measure() {
 		super();
@@ -65,19 +82,108 @@ public class Measure {
 		return dynamicMeasureName;
 	}
 
+	/**
+	 * @return A new map with the adjusted dynamic values, prefer {@link #getDynamicKey(int)}
+	 * 		and {@link #getDynamicValue(int)} where the map is not needed.
+	 */
 	public Map<String, Double> getDynamicMeasures() {
 		Map<String, Double> adjustedMap = new HashMap<String, Double>();
-		for(Map.Entry<String, Double> entry : dynamicMeasures.entrySet()) {
-			adjustedMap.put(entry.getKey(), entry.getValue()*adjustmentFactor);
+		for(int i = 0;i < dynamicCount;i++) {
+			adjustedMap.put(dynamicKeys[i], dynamicValues[i]*adjustmentFactor);
 		}
 		return adjustedMap;
 	}
 
+	/**
+	 * @return The number of different dynamic values
+	 */
+	public int getDynamicMeasureCount() {
+		return dynamicCount;
+	}
+
+	/**
+	 * @param index Between 0 and {@link #getDynamicMeasureCount()}-1
+	 * @return The name of the dynamic value at the given index
+	 */
+	public String getDynamicKey(int index) {
+		return dynamicKeys[index];
+	}
+
+	/**
+	 * @param index Between 0 and {@link #getDynamicMeasureCount()}-1
+	 * @return The dynamic value at the given index with the adjustment factor applied
+	 */
+	public double getDynamicValue(int index) {
+		return dynamicValues[index]*adjustmentFactor;
+	}
+
 	public void addDynamicMeasure(String dynamic, double lvalue) {
-		if(!dynamicMeasures.containsKey(dynamic)) {
-			dynamicMeasures.put(dynamic, lvalue);
-		} else {
-			dynamicMeasures.put(dynamic, dynamicMeasures.get(dynamic) + lvalue);
+		if(slots == null) {
+			slots = new int[INITIAL_SLOTS];
+		}
+
+		int mask = slots.length - 1;
+		int slot = hash(dynamic) & mask;
+		while(slots[slot] != 0) {
+			int index = slots[slot] - 1;
+			String key = dynamicKeys[index];
+			if(key == dynamic || (key != null && key.equals(dynamic))) {
+				dynamicValues[index] += lvalue;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if(dynamicCount == dynamicKeys.length) {
+			int capacity = Math.max(8, dynamicCount*2);
+			dynamicKeys = Arrays.copyOf(dynamicKeys, capacity);
+			dynamicValues = Arrays.copyOf(dynamicValues, capacity);
+		}
+		dynamicKeys[dynamicCount] = dynamic;
+		dynamicValues[dynamicCount] = lvalue;
+		dynamicCount++;
+		slots[slot] = dynamicCount;
+
+		// keep the table at most half full to keep the probe sequences short
+		if(dynamicCount*2 > slots.length) {
+			rehash(slots.length*2);
+		}
+	}
+
+	private void rehash(int size) {
+		slots = new int[size];
+		int mask = size - 1;
+		for(int i = 0;i < dynamicCount;i++) {
+			int slot = hash(dynamicKeys[i]) & mask;
+			while(slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = i + 1;
+		}
+	}
+
+	private static int hash(String key) {
+		if(key == null) {
+			return 0;
+		}
+
+		// spread the higher bits as only the lower bits are used for the slot
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Adds the base value and all dynamic values of the given measure to this one, e.g. to
+	 * merge the results which were collected for different regions.
+	 *
+	 * The adjustment factor of the given measure is not applied.
+	 *
+	 * @param other
+	 */
+	public void add(Measure other) {
+		value += other.value;
+		for(int i = 0;i < other.dynamicCount;i++) {
+			addDynamicMeasure(other.dynamicKeys[i], other.dynamicValues[i]);
 		}
 	}
 
@@ -88,4 +194,17 @@ public class Measure {
 	public void addValue(double lvalue) {
 		value+=lvalue;
 	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(getValue()).append(", dynamic: ").append(dynamicMeasureName).append(": {");
+		for(int i = 0;i < dynamicCount;i++) {
+			if(i > 0) {
+				builder.append(", ");
+			}
+			builder.append(dynamicKeys[i]).append('=').append(getDynamicValue(i));
+		}
+		return builder.append('}').toString();
+	}
 }
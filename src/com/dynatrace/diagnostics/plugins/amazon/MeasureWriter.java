@@ -0,0 +1,163 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: MeasureWriter.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.pdk.MonitorEnvironment;
+import com.dynatrace.diagnostics.pdk.MonitorMeasure;
+
+
+/**
+ * Collects the measures of one execution and writes them to dynaTrace in one batch.
+ *
+ * The subscribed measures are resolved only once per group and name and execution, even
+ * if multiple values are written for the same measure, e.g. costs split by usage, type
+ * and owner.
+ *
+ * Dynamic measures are created once per subscribed measure, dynamic measure name and
+ * key, and re-used in later executions as long as dynaTrace hands out the same subscribed
+ * measure. Handles of subscribed measures which were not written in the last execution
+ * are dropped.
+ *
+ * Not thread-safe, only used from the execution of the monitor.
+ */
+public class MeasureWriter {
+	private static final Logger log = Logger.getLogger(MeasureWriter.class.getName());
+
+	private MonitorEnvironment env;
+
+	// the values which are written with the next flush
+	private final List<Pending> pending = new ArrayList<Pending>();
+
+	// subscribed measures per group and name, only valid during one execution
+	private final Map<String, Collection<MonitorMeasure>> subscribed = new HashMap<String, Collection<MonitorMeasure>>();
+
+	// dynamic measures per subscribed measure, dynamic measure name and key
+	private Map<MonitorMeasure, Map<String, Map<String, MonitorMeasure>>> handles = new IdentityHashMap<MonitorMeasure, Map<String, Map<String, MonitorMeasure>>>();
+	private Map<MonitorMeasure, Map<String, Map<String, MonitorMeasure>>> previousHandles = new IdentityHashMap<MonitorMeasure, Map<String, Map<String, MonitorMeasure>>>();
+
+	/**
+	 * Start collecting the measures of an execution.
+	 *
+	 * @param env
+	 */
+	public void begin(MonitorEnvironment env) {
+		this.env = env;
+		pending.clear();
+		subscribed.clear();
+	}
+
+	/**
+	 * Queue the value, it is written with the next {@link #flush()}. The value must not be
+	 * changed afterwards.
+	 *
+	 * @param group
+	 * @param name
+	 * @param value
+	 */
+	public void write(String group, String name, Measure value) {
+		pending.add(new Pending(group, name, value));
+	}
+
+	/**
+	 * Write all queued values.
+	 */
+	public void flush() {
+		int count = 0;
+		int dynamicCount = 0;
+		for(Pending entry : pending) {
+			Collection<MonitorMeasure> measures = getSubscribedMeasures(entry.group, entry.name);
+			if (measures == null) {
+				log.warning("Could not find measure " + entry.name + "@" + entry.group + ", tried to report value: " + entry.value);
+				continue;
+			}
+
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Setting measure '" + entry.name + "' to value " + entry.value);
+			}
+
+			Measure value = entry.value;
+			for (MonitorMeasure measure : measures) {
+				measure.setValue(value.getValue());
+				count++;
+
+				Map<String, MonitorMeasure> dynamicMeasures = getHandles(measure, value.getDynamicMeasureName());
+				for(int i = 0;i < value.getDynamicMeasureCount();i++) {
+					String key = value.getDynamicKey(i);
+					MonitorMeasure dynamicMeasure = dynamicMeasures.get(key);
+					if(dynamicMeasure == null) {
+						dynamicMeasure = env.createDynamicMeasure(measure, value.getDynamicMeasureName(), key);
+						dynamicMeasures.put(key, dynamicMeasure);
+					}
+					dynamicMeasure.setValue(value.getDynamicValue(i));
+					dynamicCount++;
+				}
+			}
+		}
+		pending.clear();
+
+		// only keep the handles of the measures which were written now
+		previousHandles = handles;
+		handles = new IdentityHashMap<MonitorMeasure, Map<String, Map<String, MonitorMeasure>>>();
+
+		if (log.isLoggable(Level.INFO)) {
+			log.info("Wrote " + count + " measures with " + dynamicCount + " dynamic measures");
+		}
+	}
+
+	private Collection<MonitorMeasure> getSubscribedMeasures(String group, String name) {
+		String key = group + "@" + name;
+		if(subscribed.containsKey(key)) {
+			return subscribed.get(key);
+		}
+
+		Collection<MonitorMeasure> measures = env.getMonitorMeasures(group, name);
+		subscribed.put(key, measures);
+		return measures;
+	}
+
+	private Map<String, MonitorMeasure> getHandles(MonitorMeasure measure, String dynamicMeasureName) {
+		Map<String, Map<String, MonitorMeasure>> byName = handles.get(measure);
+		if(byName == null) {
+			byName = previousHandles.remove(measure);
+			if(byName == null) {
+				byName = new HashMap<String, Map<String, MonitorMeasure>>();
+			}
+			handles.put(measure, byName);
+		}
+
+		Map<String, MonitorMeasure> byKey = byName.get(dynamicMeasureName);
+		if(byKey == null) {
+			byKey = new HashMap<String, MonitorMeasure>();
+			byName.put(dynamicMeasureName, byKey);
+		}
+		return byKey;
+	}
+
+	/**
+	 * A value which was not written yet.
+	 */
+	private static class Pending {
+		private final String group;
+		private final String name;
+		private final Measure value;
+
+		private Pending(String group, String name, Measure value) {
+			this.group = group;
+			this.name = name;
+			this.value = value;
+		}
+	}
+}
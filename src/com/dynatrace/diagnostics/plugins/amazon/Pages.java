@@ -0,0 +1,149 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: Pages.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.rds.AmazonRDS;
+import com.amazonaws.services.rds.model.DBInstance;
+import com.amazonaws.services.rds.model.DescribeDBInstancesRequest;
+import com.amazonaws.services.rds.model.DescribeDBInstancesResult;
+
+
+/**
+ * Walks the results of one of the describe-calls page by page by following
+ * the NextToken/Marker that Amazon returns.
+ *
+ * Only one page is requested at a time and the next one is only requested
+ * when the iteration proceeds, so callers can process each page and release it
+ * before the next one is retrieved.
+ */
+public abstract class Pages<T> implements Iterable<List<T>> {
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	// limits that Amazon imposes on the number of results per page
+	private static final int EC2_MIN_PAGE_SIZE = 5;
+	private static final int EC2_MAX_PAGE_SIZE = 1000;
+	private static final int RDS_MIN_PAGE_SIZE = 20;
+	private static final int RDS_MAX_PAGE_SIZE = 100;
+
+	/**
+	 * Retrieve one page of results.
+	 *
+	 * @param token The token returned with the previous page, null for the first page
+	 * @return The page, never null
+	 */
+	protected abstract Page<T> fetch(String token);
+
+	@Override
+	public Iterator<List<T>> iterator() {
+		return new Iterator<List<T>>() {
+			private boolean first = true;
+			private String nextToken = null;
+
+			@Override
+			public boolean hasNext() {
+				return first || nextToken != null;
+			}
+
+			@Override
+			public List<T> next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				Page<T> page = fetch(nextToken);
+				first = false;
+				nextToken = page.nextToken == null || page.nextToken.isEmpty() ? null : page.nextToken;
+				return page.items;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @param client
+	 * @param pageSize The number of instances to request per page, adjusted to the limits that EC2 supports
+	 * @param filters Optional filters, an instance is only returned if it matches all of them
+	 * @return The reservations of all matching instances, page by page
+	 */
+	public static Pages<Reservation> reservations(final AmazonEC2 client, int pageSize, final Filter... filters) {
+		final int maxResults = Math.max(EC2_MIN_PAGE_SIZE, Math.min(pageSize, EC2_MAX_PAGE_SIZE));
+		return new Pages<Reservation>() {
+			@Override
+			protected Page<Reservation> fetch(String token) {
+				DescribeInstancesRequest request = new DescribeInstancesRequest().
+						withMaxResults(maxResults).withNextToken(token).withFilters(filters);
+				DescribeInstancesResult result = client.describeInstances(request);
+				return new Page<Reservation>(result.getReservations(), result.getNextToken());
+			}
+		};
+	}
+
+	/**
+	 * @param client
+	 * @param pageSize The number of instances to request per page, adjusted to the limits that RDS supports
+	 * @return All database instances, page by page
+	 */
+	public static Pages<DBInstance> dbInstances(final AmazonRDS client, int pageSize) {
+		final int maxRecords = Math.max(RDS_MIN_PAGE_SIZE, Math.min(pageSize, RDS_MAX_PAGE_SIZE));
+		return new Pages<DBInstance>() {
+			@Override
+			protected Page<DBInstance> fetch(String token) {
+				DescribeDBInstancesRequest request = new DescribeDBInstancesRequest().
+						withMaxRecords(maxRecords).withMarker(token);
+				DescribeDBInstancesResult result = client.describeDBInstances(request);
+				return new Page<DBInstance>(result.getDBInstances(), result.getMarker());
+			}
+		};
+	}
+
+	/**
+	 * DescribeStacks does not support setting the page size, Amazon decides on it.
+	 *
+	 * @param client
+	 * @return All cloud formation stacks, page by page
+	 */
+	public static Pages<Stack> stacks(final AmazonCloudFormation client) {
+		return new Pages<Stack>() {
+			@Override
+			protected Page<Stack> fetch(String token) {
+				DescribeStacksRequest request = new DescribeStacksRequest().withNextToken(token);
+				DescribeStacksResult result = client.describeStacks(request);
+				return new Page<Stack>(result.getStacks(), result.getNextToken());
+			}
+		};
+	}
+
+	/**
+	 * One page of results together with the token for retrieving the next one.
+	 */
+	protected static class Page<T> {
+		private final List<T> items;
+		private final String nextToken;
+
+		public Page(List<T> items, String nextToken) {
+			this.items = items;
+			this.nextToken = nextToken;
+		}
+	}
+}
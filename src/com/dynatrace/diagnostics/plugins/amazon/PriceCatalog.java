@@ -0,0 +1,331 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: PriceCatalog.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+
+/**
+ * Keeps the prices that Amazon publishes for on-demand instances up to date.
+ *
+ * The prices of the last successful download are stored in the {@link StateStore} and
+ * loaded from there on startup, so they are available immediately. Afterwards the pricing files
+ * are downloaded in the background and periodically checked for updates via conditional
+ * requests, i.e. a file is only downloaded and parsed again if Amazon reports a change
+ * via ETag or Last-Modified.
+ */
+public class PriceCatalog {
+	private static final Logger log = Logger.getLogger(PriceCatalog.class.getName());
+
+	private static final int HTTP_TIMEOUT = 60000;
+
+	private static final String PROP_URL = ".url";
+	private static final String PROP_ETAG = ".etag";
+	private static final String PROP_LAST_MODIFIED = ".lastModified";
+	private static final String PROP_PRICE = ".price.";
+	private static final String PREFIX_SOURCE = "source.";
+	private static final String PREFIX_STATE = "prices.";
+
+	private final String[] urls;
+	private final StateStore store;
+	private final long refreshIntervalMs;
+
+	private final DefaultHttpClient httpClient;
+	private ScheduledExecutorService refresher;
+
+	// state of each of the pricing files, only accessed by the refresh thread after startup
+	private final Source[] sources;
+
+	// the combined prices of all files, replaced as a whole whenever one of the files changes
+	private volatile Properties prices = new Properties();
+	private volatile int version = 0;
+
+	private final CountDownLatch initialLoad = new CountDownLatch(1);
+
+	/**
+	 * @param urls The pricing files to read, prices of later files replace the ones of earlier files
+	 * @param store Where the prices are persisted, null if they should not be persisted
+	 * @param refreshIntervalMs How often the pricing files are checked for updates
+	 */
+	public PriceCatalog(String[] urls, StateStore store, long refreshIntervalMs) {
+		this.urls = urls;
+		this.store = store;
+		this.refreshIntervalMs = refreshIntervalMs;
+
+		sources = new Source[urls.length];
+		for(int i = 0;i < urls.length;i++) {
+			sources[i] = new Source(urls[i]);
+		}
+
+		httpClient = new DefaultHttpClient(new PoolingClientConnectionManager());
+		HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), HTTP_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(httpClient.getParams(), HTTP_TIMEOUT);
+	}
+
+	/**
+	 * Load the prices from the snapshot of a previous run and start downloading the
+	 * current prices in the background.
+	 */
+	public synchronized void start() {
+		if(loadSnapshot()) {
+			initialLoad.countDown();
+		}
+
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AmazonAccountMonitor-PriceRefresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Could not refresh cost-properties from Amazon via JSON, keeping previous prices", e);
+				} finally {
+					initialLoad.countDown();
+				}
+			}
+		}, 0, refreshIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if(refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+		httpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Wait until prices are available, either from the snapshot or from the first
+	 * download attempt.
+	 *
+	 * @param timeoutMs
+	 * @return true if prices were loaded, false if the timeout was reached
+	 * @throws InterruptedException
+	 */
+	public boolean awaitInitialLoad(long timeoutMs) throws InterruptedException {
+		return initialLoad.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The current prices as cost-properties, e.g. cost.us-east-1.m1.small.linux=0.060,
+	 * 		the returned object must not be modified.
+	 */
+	public Properties getPrices() {
+		return prices;
+	}
+
+	/**
+	 * @return A number which changes whenever the prices change
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return How many ms it took to download and parse each of the pricing files the last time they changed,
+	 * 		by url, files which were not downloaded since the start are not included.
+	 */
+	public Map<String, Long> getParseTimes() {
+		Map<String, Long> parseTimes = new LinkedHashMap<String, Long>();
+		for(Source source : sources) {
+			long parseTime = source.parseTime;
+			if(parseTime != -1) {
+				parseTimes.put(source.url, parseTime);
+			}
+		}
+		return parseTimes;
+	}
+
+	/**
+	 * Check all pricing files for updates and download the ones that changed.
+	 */
+	public void refresh() {
+		boolean changed = false;
+		for(Source source : sources) {
+			try {
+				changed |= refresh(source);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not read cost-properties from Amazon via JSON from " + source.url + ", keeping previous prices", e);
+			} catch (RuntimeException e) {
+				// e.g. an unknown region in the file, the other files are still used
+				log.log(Level.WARNING, "Could not parse cost-properties from Amazon via JSON from " + source.url + ", keeping previous prices", e);
+			}
+		}
+
+		if(changed) {
+			publish();
+			storeSnapshot();
+		}
+	}
+
+	private boolean refresh(Source source) throws IOException {
+		HttpGet httpGet = new HttpGet(source.url);
+		if(source.etag != null) {
+			httpGet.setHeader(HttpHeaders.IF_NONE_MATCH, source.etag);
+		}
+		if(source.lastModified != null) {
+			httpGet.setHeader(HttpHeaders.IF_MODIFIED_SINCE, source.lastModified);
+		}
+
+		HttpResponse response = httpClient.execute(httpGet);
+		HttpEntity entity = response.getEntity();
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if(statusCode == HttpStatus.SC_NOT_MODIFIED) {
+				if(log.isLoggable(Level.FINE)) {
+					log.fine("Pricing information at " + source.url + " did not change");
+				}
+				return false;
+			}
+			if(statusCode != HttpStatus.SC_OK) {
+				log.warning("Had HTTP StatusCode " + statusCode + " for request: " + source.url);
+				return false;
+			}
+
+			Properties newPrices = new Properties();
+			long start = System.nanoTime();
+			PriceParser.parse(entity.getContent(), source.url, newPrices);
+			source.parseTime = (System.nanoTime() - start)/1000/1000;
+
+			source.prices = newPrices;
+			source.etag = getHeader(response, HttpHeaders.ETAG);
+			source.lastModified = getHeader(response, HttpHeaders.LAST_MODIFIED);
+
+			log.info("Read " + newPrices.size() + " prices from " + source.url);
+			return true;
+		} finally {
+			// ensure all content is taken out to free the connection
+			EntityUtils.consume(entity);
+		}
+	}
+
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	private void publish() {
+		// prices of later files replace the ones from earlier files
+		Properties combined = new Properties();
+		for(Source source : sources) {
+			combined.putAll(source.prices);
+		}
+
+		prices = combined;
+		version++;
+	}
+
+	private boolean loadSnapshot() {
+		if(store == null) {
+			return false;
+		}
+
+		Map<String, String> snapshot = store.getAll(PREFIX_STATE);
+
+		boolean found = false;
+		for(int i = 0;i < sources.length;i++) {
+			String prefix = PREFIX_SOURCE + i;
+
+			// only use the snapshot if it was taken from the same file
+			if(!urls[i].equals(snapshot.get(prefix + PROP_URL))) {
+				continue;
+			}
+
+			Source source = sources[i];
+			source.etag = snapshot.get(prefix + PROP_ETAG);
+			source.lastModified = snapshot.get(prefix + PROP_LAST_MODIFIED);
+			String pricePrefix = prefix + PROP_PRICE;
+			for(Map.Entry<String, String> entry : snapshot.entrySet()) {
+				if(entry.getKey().startsWith(pricePrefix)) {
+					source.prices.setProperty(entry.getKey().substring(pricePrefix.length()), entry.getValue());
+				}
+			}
+			found |= !source.prices.isEmpty();
+		}
+
+		if(found) {
+			publish();
+			log.info("Loaded " + prices.size() + " prices from the snapshot of the previous run");
+		}
+		return found;
+	}
+
+	private void storeSnapshot() {
+		if(store == null) {
+			return;
+		}
+
+		Map<String, String> snapshot = new HashMap<String, String>();
+		for(int i = 0;i < sources.length;i++) {
+			Source source = sources[i];
+			String prefix = PREFIX_SOURCE + i;
+			snapshot.put(prefix + PROP_URL, source.url);
+			if(source.etag != null) {
+				snapshot.put(prefix + PROP_ETAG, source.etag);
+			}
+			if(source.lastModified != null) {
+				snapshot.put(prefix + PROP_LAST_MODIFIED, source.lastModified);
+			}
+			for(String name : source.prices.stringPropertyNames()) {
+				snapshot.put(prefix + PROP_PRICE + name, source.prices.getProperty(name));
+			}
+		}
+
+		// only the prices which changed are written
+		try {
+			store.putAll(PREFIX_STATE, snapshot);
+			store.sync();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not write snapshot of prices", e);
+		}
+	}
+
+	/**
+	 * One of the pricing files together with the information needed for conditional requests.
+	 */
+	private static class Source {
+		private final String url;
+		private String etag;
+		private String lastModified;
+		private Properties prices = new Properties();
+		// in ms, read by the execution of the monitor, -1 if the file was not parsed yet
+		private volatile long parseTime = -1;
+
+		private Source(String url) {
+			this.url = url;
+		}
+	}
+}
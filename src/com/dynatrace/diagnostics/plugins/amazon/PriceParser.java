@@ -0,0 +1,287 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: PriceParser.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+
+/**
+ * Reads the pricing files that Amazon publishes for on-demand instances token by token
+ * directly from the stream, without building a tree of the whole document in memory.
+ *
+ * The files are JSONP with a leading comment and a "callback(" wrapper and use
+ * unquoted field names, the wrapper is skipped while reading the stream.
+ */
+public class PriceParser {
+	private static final Logger log = Logger.getLogger(PriceParser.class.getName());
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+	static {
+		FACTORY.enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES);
+		FACTORY.enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES);
+		FACTORY.enable(JsonParser.Feature.ALLOW_COMMENTS);
+	}
+
+	private static final Map<String,String> JSON_REGION_MAP = new HashMap<String, String>();
+	static {
+	    JSON_REGION_MAP.put("us-east", "us-east-1");
+	    JSON_REGION_MAP.put("us-west-2", "us-west-2");
+	    JSON_REGION_MAP.put("us-west", "us-west-1");
+	    JSON_REGION_MAP.put("eu-ireland", "eu-west-1");
+	    JSON_REGION_MAP.put("apac-sin", "ap-southeast-1");
+	    JSON_REGION_MAP.put("apac-tokyo", "ap-northeast-1");
+	    JSON_REGION_MAP.put("apac-syd", "ap-southeast-2");
+	    JSON_REGION_MAP.put("sa-east-1", "sa-east-1");
+	}
+
+	/**
+	 * Receives the prices found in a pricing file.
+	 */
+	public interface Handler {
+		/**
+		 * @param region The Amazon region id, e.g. us-east-1
+		 * @param size The instance type, e.g. m1.small
+		 * @param os Either "linux" or "windows"
+		 * @param price The price per hour in USD as found in the file
+		 */
+		void price(String region, String size, String os, String price);
+	}
+
+	/**
+	 * Parse the pricing file and add the found prices as cost-properties,
+	 * e.g. cost.us-east-1.m1.small.linux=0.060
+	 *
+	 * @param stream The content of the pricing file, either JSON or JSONP, the stream is closed afterwards
+	 * @param urlJson The url where the file was read from, used to decide on the OS if it is not part of the file
+	 * @param prices The properties where the prices are added
+	 * @throws IOException If the file cannot be read or parsed
+	 */
+	public static void parse(InputStream stream, String urlJson, final Properties prices) throws IOException {
+		parse(stream, urlJson, new Handler() {
+			@Override
+			public void price(String region, String size, String os, String price) {
+				prices.setProperty("cost." + region + "." + size + "." + os, price);
+			}
+		});
+	}
+
+	/**
+	 * Parse the pricing file and report each found price to the given handler.
+	 *
+	 * @param stream The content of the pricing file, either JSON or JSONP, the stream is closed afterwards
+	 * @param urlJson The url where the file was read from, used to decide on the OS if it is not part of the file
+	 * @param handler
+	 * @throws IOException If the file cannot be read or parsed
+	 */
+	public static void parse(InputStream stream, String urlJson, Handler handler) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(stream));
+		try {
+			if(!skipToJson(in)) {
+				throw new JsonParseException("Did not find any JSON content in pricing file " + urlJson, null);
+			}
+
+			JsonParser parser = FACTORY.createParser(in);
+			try {
+				expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+				while(parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					parser.nextToken();
+					if("config".equals(field)) {
+						readConfig(parser, urlJson, handler);
+					} else {
+						parser.skipChildren();
+					}
+				}
+
+				// do not read beyond the end of the json-object, the closing part of the JSONP-wrapper follows there
+			} finally {
+				parser.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void readConfig(JsonParser parser, String urlJson, Handler handler) throws IOException {
+		expect(parser.getCurrentToken(), JsonToken.START_OBJECT, parser);
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if("regions".equals(field)) {
+				expect(parser.getCurrentToken(), JsonToken.START_ARRAY, parser);
+				while(parser.nextToken() == JsonToken.START_OBJECT) {
+					readRegion(parser, urlJson, handler);
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private static void readRegion(JsonParser parser, String urlJson, Handler handler) throws IOException {
+		String region = null;
+
+		// the name of the region is usually reported first, but keep the prices until the end of the
+		// object to not depend on the order of the fields
+		List<String[]> regionPrices = new ArrayList<String[]>();
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if("region".equals(field)) {
+				region = parser.getText();
+				log.info("Found region in Amazon Pricing json file: " + region);
+			} else if("instanceTypes".equals(field)) {
+				expect(parser.getCurrentToken(), JsonToken.START_ARRAY, parser);
+				while(parser.nextToken() == JsonToken.START_OBJECT) {
+					readInstanceType(parser, urlJson, regionPrices);
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		for(String[] price : regionPrices) {
+			String mappedRegion = JSON_REGION_MAP.get(region);
+			if(mappedRegion == null) {
+				throw new IllegalStateException("Did not find a mapping for region " + region + ", size: " + price[0] + ", osName: " + price[1] + ", price: " + price[2] + ", having mappings: " + JSON_REGION_MAP);
+			}
+
+			handler.price(mappedRegion, price[0], price[1], price[2]);
+		}
+	}
+
+	private static void readInstanceType(JsonParser parser, String urlJson, List<String[]> regionPrices) throws IOException {
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if("sizes".equals(field)) {
+				expect(parser.getCurrentToken(), JsonToken.START_ARRAY, parser);
+				while(parser.nextToken() == JsonToken.START_OBJECT) {
+					readSize(parser, urlJson, regionPrices);
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private static void readSize(JsonParser parser, String urlJson, List<String[]> regionPrices) throws IOException {
+		String size = null;
+		int start = regionPrices.size();
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if("size".equals(field)) {
+				size = parser.getText();
+			} else if("valueColumns".equals(field)) {
+				expect(parser.getCurrentToken(), JsonToken.START_ARRAY, parser);
+				while(parser.nextToken() == JsonToken.START_OBJECT) {
+					readValueColumn(parser, urlJson, regionPrices);
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		// fill in the size now that we know it
+		for(int i = start;i < regionPrices.size();i++) {
+			regionPrices.get(i)[0] = size;
+		}
+	}
+
+	private static void readValueColumn(JsonParser parser, String urlJson, List<String[]> regionPrices) throws IOException {
+		String osName = null;
+		String price = null;
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if("name".equals(field)) {
+				osName = parser.getText();
+			} else if("prices".equals(field)) {
+				expect(parser.getCurrentToken(), JsonToken.START_OBJECT, parser);
+				while(parser.nextToken() == JsonToken.FIELD_NAME) {
+					String currency = parser.getCurrentName();
+					parser.nextToken();
+					if("USD".equals(currency)) {
+						price = parser.getText();
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if(osName == null || price == null) {
+			throw new JsonParseException("Expected name and USD price for value column, but had name: " + osName + ", price: " + price, parser.getCurrentLocation());
+		}
+
+		if(osName.equals("mswin")) {
+			osName = "windows";
+		} else if (osName.equals("os")) {
+			if(urlJson.contains("mswin-")) {
+				osName = "windows";
+			} else {
+				osName = "linux";
+			}
+		}
+
+		regionPrices.add(new String[] { null, osName, price });
+	}
+
+	private static void expect(JsonToken token, JsonToken expected, JsonParser parser) throws JsonParseException {
+		if(token != expected) {
+			throw new JsonParseException("Expected " + expected + " but had " + token, parser.getCurrentLocation());
+		}
+	}
+
+	/**
+	 * Skip everything up to the start of the actual json-object, i.e. leading
+	 * comments and the "callback(" of JSONP.
+	 *
+	 * @param in
+	 * @return false if the end of the stream was reached without finding the json-object
+	 * @throws IOException
+	 */
+	private static boolean skipToJson(PushbackInputStream in) throws IOException {
+		boolean inComment = false;
+		int previous = -1;
+		int c;
+		while((c = in.read()) != -1) {
+			if(inComment) {
+				if(previous == '*' && c == '/') {
+					inComment = false;
+					c = -1;
+				}
+			} else if(previous == '/' && c == '*') {
+				inComment = true;
+				c = -1;
+			} else if(c == '{') {
+				in.unread(c);
+				return true;
+			}
+			previous = c;
+		}
+
+		return false;
+	}
+}
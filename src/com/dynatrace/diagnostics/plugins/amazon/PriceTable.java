@@ -0,0 +1,192 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: PriceTable.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Immutable table of the hourly price per region, instance type and operating system.
+ *
+ * Regions and instance types are addressed via their ids in {@link SymbolTable#REGIONS}
+ * and {@link SymbolTable#INSTANCE_TYPES}, so a lookup is a plain array access.
+ *
+ * The table is built via {@link Builder} from cost-properties in the form
+ * cost.&lt;region&gt;.&lt;type&gt;.&lt;os&gt;=&lt;price&gt; for EC2 instances and
+ * cost.&lt;region&gt;.&lt;class&gt;=&lt;price&gt; for RDS instances.
+ */
+public class PriceTable {
+	private static final Logger log = Logger.getLogger(PriceTable.class.getName());
+
+	public static final int OS_LINUX = 0;
+	public static final int OS_WINDOWS = 1;
+	// used for RDS instances which do not have an OS in the cost-property
+	public static final int OS_NONE = 2;
+	private static final int OS_COUNT = 3;
+
+	private static final String[] OS_SUFFIX = new String[] { ".linux", ".windows", "" };
+
+	private static final String PREFIX_COST = "cost.";
+
+	// [region][type*OS_COUNT + os], NaN if no price is known
+	private final double[][] prices;
+	private final int size;
+
+	private PriceTable(double[][] prices, int size) {
+		this.prices = prices;
+		this.size = size;
+	}
+
+	/**
+	 * @param region The id of the region in {@link SymbolTable#REGIONS}
+	 * @param type The id of the instance type in {@link SymbolTable#INSTANCE_TYPES}
+	 * @param os One of {@link #OS_LINUX}, {@link #OS_WINDOWS} or {@link #OS_NONE}
+	 * @return The price per hour or NaN if no price is known
+	 */
+	public double price(int region, int type, int os) {
+		if(region < 0 || region >= prices.length || prices[region] == null) {
+			return Double.NaN;
+		}
+
+		int index = type*OS_COUNT + os;
+		double[] regionPrices = prices[region];
+		return type < 0 || index >= regionPrices.length ? Double.NaN : regionPrices[index];
+	}
+
+	/**
+	 * @param region
+	 * @param type
+	 * @param os One of {@link #OS_LINUX}, {@link #OS_WINDOWS} or {@link #OS_NONE}
+	 * @return The price per hour or NaN if no price is known
+	 */
+	public double price(String region, String type, int os) {
+		return price(SymbolTable.REGIONS.get(region), SymbolTable.INSTANCE_TYPES.get(type), os);
+	}
+
+	/**
+	 * @return The number of prices in this table
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param region
+	 * @param type
+	 * @param os
+	 * @return The name of the cost-property for the given combination, used for reporting missing prices
+	 */
+	public static String getPropertyName(String region, String type, int os) {
+		return PREFIX_COST + region + "." + type + OS_SUFFIX[os];
+	}
+
+	/**
+	 * Collects prices and creates the {@link PriceTable}, prices which are added later
+	 * replace earlier ones.
+	 */
+	public static class Builder {
+		private double[][] prices = new double[0][];
+		private int size = 0;
+
+		/**
+		 * Add all cost-properties, other properties are ignored.
+		 *
+		 * @param properties
+		 * @return this
+		 */
+		public Builder putAll(Properties properties) {
+			for(String name : properties.stringPropertyNames()) {
+				put(name, properties.getProperty(name));
+			}
+			return this;
+		}
+
+		/**
+		 * @param name The name of the cost-property, e.g. cost.us-east-1.m1.small.linux
+		 * @param value The price per hour
+		 * @return this
+		 */
+		public Builder put(String name, String value) {
+			if(!name.startsWith(PREFIX_COST)) {
+				return this;
+			}
+
+			int regionEnd = name.indexOf('.', PREFIX_COST.length());
+			if(regionEnd == -1) {
+				return this;
+			}
+			String region = name.substring(PREFIX_COST.length(), regionEnd);
+
+			int os = OS_NONE;
+			int typeEnd = name.length();
+			if(name.endsWith(OS_SUFFIX[OS_LINUX])) {
+				os = OS_LINUX;
+				typeEnd -= OS_SUFFIX[OS_LINUX].length();
+			} else if(name.endsWith(OS_SUFFIX[OS_WINDOWS])) {
+				os = OS_WINDOWS;
+				typeEnd -= OS_SUFFIX[OS_WINDOWS].length();
+			}
+			if(typeEnd <= regionEnd + 1) {
+				return this;
+			}
+
+			return put(region, name.substring(regionEnd + 1, typeEnd), os, value);
+		}
+
+		/**
+		 * @param region
+		 * @param type
+		 * @param os One of {@link #OS_LINUX}, {@link #OS_WINDOWS} or {@link #OS_NONE}
+		 * @param value The price per hour
+		 * @return this
+		 */
+		public Builder put(String region, String type, int os, String value) {
+			final double price;
+			try {
+				price = Double.parseDouble(value.trim());
+			} catch (NumberFormatException e) {
+				if(log.isLoggable(Level.FINE)) {
+					log.fine("Ignoring price which is not a number for " + getPropertyName(region, type, os) + ": " + value);
+				}
+				return this;
+			}
+
+			int regionId = SymbolTable.REGIONS.intern(region);
+			int typeId = SymbolTable.INSTANCE_TYPES.intern(type);
+
+			if(regionId >= prices.length) {
+				prices = Arrays.copyOf(prices, regionId + 1);
+			}
+			int index = typeId*OS_COUNT + os;
+			double[] regionPrices = prices[regionId];
+			if(regionPrices == null || index >= regionPrices.length) {
+				int oldLength = regionPrices == null ? 0 : regionPrices.length;
+				regionPrices = regionPrices == null ? new double[index + 1] : Arrays.copyOf(regionPrices, index + 1);
+				Arrays.fill(regionPrices, oldLength, regionPrices.length, Double.NaN);
+				prices[regionId] = regionPrices;
+			}
+
+			if(Double.isNaN(regionPrices[index])) {
+				size++;
+			}
+			regionPrices[index] = price;
+			return this;
+		}
+
+		public PriceTable build() {
+			// copy to keep the table immutable even if the builder is used further
+			double[][] copy = new double[prices.length][];
+			for(int i = 0;i < prices.length;i++) {
+				copy[i] = prices[i] == null ? null : prices[i].clone();
+			}
+			return new PriceTable(copy, size);
+		}
+	}
+}
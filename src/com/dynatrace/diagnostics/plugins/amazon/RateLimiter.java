@@ -0,0 +1,277 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: RateLimiter.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+
+
+/**
+ * Token bucket which limits the rate of requests that are sent to Amazon for one account.
+ *
+ * Amazon throttles requests per account, so all clients which use the same account share
+ * one limiter, also across multiple monitors in the same process. The rate adapts to
+ * the limits that Amazon enforces: it is halved whenever a request is throttled and
+ * slowly increased again with each successful request.
+ *
+ * Throttled requests are retried with exponential backoff and full jitter, so that
+ * multiple threads which were throttled at the same time do not retry at the same time.
+ *
+ * Use {@link #attach(AmazonWebServiceClient)} together with a configuration from
+ * {@link #configure(ClientConfiguration)} to apply the limiter to a client.
+ */
+public class RateLimiter {
+	private static final Logger log = Logger.getLogger(RateLimiter.class.getName());
+
+	private static final ConcurrentMap<String, RateLimiter> ACCOUNTS = new ConcurrentHashMap<String, RateLimiter>();
+
+	// requests per second
+	private static final double MAX_RATE = 20;
+	private static final double MIN_RATE = 0.5;
+	// how much the rate is increased per successful request
+	private static final double RATE_INCREASE = 0.1;
+	// how many requests can be sent at once after a period of inactivity
+	private static final double BURST = 20;
+
+	private static final int MAX_RETRIES = 8;
+	private static final long BASE_DELAY = 100;
+	private static final long THROTTLED_BASE_DELAY = 500;
+	private static final long MAX_DELAY = 20000;
+
+	private static final Random RANDOM = new Random();
+
+	private final String name;
+
+	private double rate = MAX_RATE;
+	// negative if requests were already promised for the future
+	private double tokens = BURST;
+	private long lastRefill = System.nanoTime();
+
+	private final RetryPolicy retryPolicy;
+	private final RequestHandler2 requestHandler;
+
+	private RateLimiter(String name) {
+		this.name = name;
+
+		retryPolicy = new RetryPolicy(new RetryPolicy.RetryCondition() {
+			@Override
+			public boolean shouldRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
+				ApiStatistics statistics = ApiStatistics.current();
+				if(isThrottling(exception)) {
+					onThrottled();
+					if(statistics != null) {
+						statistics.onRetry(true);
+					}
+					return true;
+				}
+				boolean retry = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(originalRequest, exception, retriesAttempted);
+				if(retry && statistics != null) {
+					statistics.onRetry(false);
+				}
+				return retry;
+			}
+		}, new RetryPolicy.BackoffStrategy() {
+			@Override
+			public long delayBeforeNextRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
+				long base = isThrottling(exception) ? THROTTLED_BASE_DELAY : BASE_DELAY;
+
+				// the retry also needs to wait for its turn in the bucket
+				return Math.max(getJitteredDelay(base, retriesAttempted), reserve());
+			}
+		}, MAX_RETRIES, false);
+
+		requestHandler = new RequestHandler2() {
+			@Override
+			public void beforeRequest(Request<?> request) {
+				acquire();
+
+				// the time waiting for the limiter is not part of the latency of the call
+				ApiStatistics statistics = ApiStatistics.current();
+				if(statistics != null) {
+					statistics.onCallStart();
+				}
+			}
+
+			@Override
+			public void afterResponse(Request<?> request, Response<?> response) {
+				onSuccess();
+
+				ApiStatistics statistics = ApiStatistics.current();
+				if(statistics != null) {
+					statistics.onCallEnd(getContentLength(response));
+				}
+			}
+
+			@Override
+			public void afterError(Request<?> request, Response<?> response, Exception e) {
+				// throttling is already handled when deciding about the retry
+				ApiStatistics statistics = ApiStatistics.current();
+				if(statistics != null) {
+					statistics.onCallEnd(0);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param accessKeyId
+	 * @return The limiter that is shared by all clients of the given account
+	 */
+	public static RateLimiter forAccount(String accessKeyId) {
+		RateLimiter limiter = ACCOUNTS.get(accessKeyId);
+		if(limiter == null) {
+			limiter = new RateLimiter(accessKeyId);
+			RateLimiter existing = ACCOUNTS.putIfAbsent(accessKeyId, limiter);
+			if(existing != null) {
+				limiter = existing;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * @param clientConfig
+	 * @return A copy of the configuration which retries throttled requests with the backoff of this limiter
+	 */
+	public ClientConfiguration configure(ClientConfiguration clientConfig) {
+		ClientConfiguration config = new ClientConfiguration(clientConfig);
+		config.setRetryPolicy(retryPolicy);
+		return config;
+	}
+
+	/**
+	 * Let all requests of the client wait for their turn in this limiter.
+	 *
+	 * @param client A client which was created with a configuration from {@link #configure(ClientConfiguration)}
+	 * @return The client
+	 */
+	public <T extends AmazonWebServiceClient> T attach(T client) {
+		client.addRequestHandler(requestHandler);
+		return client;
+	}
+
+	/**
+	 * Wait until the next request can be sent.
+	 */
+	public void acquire() {
+		long delay = reserve();
+		if(delay <= 0) {
+			return;
+		}
+
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting for rate limit of account " + name, e);
+		}
+	}
+
+	/**
+	 * Take the next token out of the bucket.
+	 *
+	 * @return How many milliseconds the caller needs to wait before the request can be sent
+	 */
+	private synchronized long reserve() {
+		long now = System.nanoTime();
+		tokens = Math.min(BURST, tokens + (now - lastRefill) / 1e9 * rate);
+		lastRefill = now;
+
+		tokens--;
+		if(tokens >= 0) {
+			return 0;
+		}
+		return (long)Math.ceil(-tokens / rate * 1000);
+	}
+
+	private synchronized void onThrottled() {
+		double previous = rate;
+		rate = Math.max(MIN_RATE, rate / 2);
+
+		// do not hand out the remaining burst while Amazon is throttling us
+		tokens = Math.min(tokens, 0);
+
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Request was throttled by Amazon, reducing rate for account " + name + " from " + previous + " to " + rate + " requests per second");
+		}
+	}
+
+	private synchronized void onSuccess() {
+		rate = Math.min(MAX_RATE, rate + RATE_INCREASE);
+	}
+
+	/**
+	 * @return The current number of requests per second
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @param exception
+	 * @return true if Amazon rejected the request because too many requests were sent
+	 */
+	public static boolean isThrottling(AmazonClientException exception) {
+		if(!(exception instanceof AmazonServiceException)) {
+			return false;
+		}
+
+		String errorCode = ((AmazonServiceException)exception).getErrorCode();
+		return "RequestLimitExceeded".equals(errorCode) ||
+				"Throttling".equals(errorCode) ||
+				"ThrottlingException".equals(errorCode);
+	}
+
+	/**
+	 * The SDK does not expose how many bytes were read, so the size which Amazon announces
+	 * in the response is used.
+	 *
+	 * @param response
+	 * @return The length of the body of the response, 0 if it is not known, e.g. for chunked responses
+	 */
+	private static long getContentLength(Response<?> response) {
+		if(response == null || response.getHttpResponse() == null) {
+			return 0;
+		}
+
+		for(Map.Entry<String, String> header : response.getHttpResponse().getHeaders().entrySet()) {
+			if("Content-Length".equalsIgnoreCase(header.getKey())) {
+				try {
+					return Long.parseLong(header.getValue().trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+
+	private static long getJitteredDelay(long base, int retriesAttempted) {
+		long delay = Math.min(MAX_DELAY, base << Math.min(retriesAttempted, 16));
+		return (long)(RANDOM.nextDouble() * delay);
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimiter for account " + name + ": " + getRate() + " requests per second";
+	}
+}
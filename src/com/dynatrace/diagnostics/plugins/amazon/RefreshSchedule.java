@@ -0,0 +1,100 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: RefreshSchedule.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Decides for each unit of work, i.e. one service in one region, whether it needs to be
+ * retrieved again or whether the result of a previous run can be reported instead.
+ *
+ * Each unit has its own refresh period which adapts to how often its results change:
+ * as long as the results stay the same the period is doubled up to the maximum of the
+ * service, as soon as a change is seen the unit is retrieved on every run again until
+ * it settles. This way stacks or RDS instances which rarely change are only retrieved
+ * occasionally, while regions with a lot of churn are kept up to date.
+ *
+ * Units which failed are retrieved again on the next run.
+ *
+ * Not thread-safe, only used from the execution of the monitor.
+ */
+public class RefreshSchedule {
+	// the first period after a unit did not change
+	private static final long MIN_PERIOD = 60*1000;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * @param unit
+	 * @param now
+	 * @return true if the unit needs to be retrieved in this run
+	 */
+	public boolean isDue(String unit, long now) {
+		Entry entry = entries.get(unit);
+
+		// the runs are not exactly periodic, so allow a unit to be retrieved a little early
+		return entry == null || now >= entry.next - entry.period/10;
+	}
+
+	/**
+	 * Adapt the period of the unit after it was retrieved successfully.
+	 *
+	 * @param unit
+	 * @param fingerprint A hash of the result, which changes when the result changes
+	 * @param maxPeriod The longest time in ms that results of this unit may be reused, 0 to retrieve it on every run
+	 * @param now
+	 * @return The new period of the unit in ms
+	 */
+	public long onRetrieved(String unit, long fingerprint, long maxPeriod, long now) {
+		Entry entry = entries.get(unit);
+		if(entry == null) {
+			entry = new Entry(fingerprint);
+			entries.put(unit, entry);
+		} else if(entry.fingerprint != fingerprint) {
+			entry.fingerprint = fingerprint;
+			entry.period = 0;
+		} else {
+			entry.period = entry.period == 0 ? MIN_PERIOD : entry.period*2;
+		}
+
+		entry.period = Math.min(entry.period, maxPeriod);
+		entry.next = now + entry.period;
+		return entry.period;
+	}
+
+	/**
+	 * Forget the unit, e.g. after it failed, so that it is retrieved on the next run.
+	 *
+	 * @param unit
+	 */
+	public void reset(String unit) {
+		entries.remove(unit);
+	}
+
+	/**
+	 * @return The number of units which are scheduled
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * When one unit needs to be retrieved next.
+	 */
+	private static class Entry {
+		private long fingerprint;
+		// in ms, 0 if the unit is retrieved on every run
+		private long period = 0;
+		private long next = 0;
+
+		private Entry(long fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+	}
+}
@@ -9,15 +9,19 @@ package com.dynatrace.diagnostics.plugins.amazon;
 
 import static com.dynatrace.diagnostics.plugins.amazon.AmazonAccountMonitor.*;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.Reservation;
 
@@ -26,7 +30,9 @@ import com.amazonaws.services.ec2.model.Reservation;
  * Small helper application which walks through all instances and checks if they have an "Usage" Tag which
  * is used for monitoring later.
  *
- * Based on some heuristics it tries to determine and set the tag for instances that do not have it set.
+ * Based on the {@link TagRules} it tries to determine and set the tag for instances that do not have it set.
+ * All regions of all accounts are processed in parallel, in each region all instances are classified
+ * first and then tagged with one request per tag value.
  *
  * A list of not-tagged instances is print at the end for further investigation.
  *
@@ -35,46 +41,100 @@ import com.amazonaws.services.ec2.model.Reservation;
 public class SetUsageTags {
 	private static final Logger log = Logger.getLogger(SetUsageTags.class.getName());
 
+	private static final String ARG_DRY_RUN = "--dry-run";
+
+	private static final int THREADS = 8;
+	private static final long REGION_TIMEOUT = 10*60*1000;
+
 	private ClientConfiguration clientConfig = new ClientConfiguration();
 
+	private final TagRules rules;
+	private final boolean dryRun;
+
+	public SetUsageTags(TagRules rules, boolean dryRun) {
+		this.rules = rules;
+		this.dryRun = dryRun;
+	}
+
 	/**
 	 *
-	 * @param args
-	 * @throws IOException
+	 * @param args Optionally "--dry-run" to only report which tags would be set and a file with the
+	 * 		rules for the Usage-Tag, see {@link TagRules}
+	 * @throws Exception
 	 */
-	public static void main(String[] args) throws IOException {
-        new SetUsageTags().run();
+	public static void main(String[] args) throws Exception {
+		TagRules rules = TagRules.DEFAULT;
+		boolean dryRun = false;
+		for(String arg : args) {
+			if(ARG_DRY_RUN.equals(arg)) {
+				dryRun = true;
+				continue;
+			}
+
+			FileInputStream stream = new FileInputStream(arg);
+			try {
+				rules = TagRules.compile(AmazonUtils.readToString(stream));
+			} finally {
+				stream.close();
+			}
+		}
+
+        new SetUsageTags(rules, dryRun).run();
 	}
 
-	private void run() throws IOException {
+	private void run() throws Exception {
 		AmazonUtils.init(clientConfig);
-
-		Map<String, Integer> countPerAccount = new HashMap<String, Integer>();
-		for(String name : AmazonUtils.getAccountNames()) {
-			countPerAccount.put(name, runForAWSAccount(name));
+		if(dryRun) {
+			log.info("Dry run, no tags are set");
 		}
 
-		log.info("Had missing tag counts: " + countPerAccount);
+		CollectionEngine engine = new CollectionEngine(THREADS, REGION_TIMEOUT);
+		try {
+			// first start the work for all regions of all accounts, then wait for the results
+			Map<String, List<CollectionEngine.Unit<RegionResult>>> unitsPerAccount = new LinkedHashMap<String, List<CollectionEngine.Unit<RegionResult>>>();
+			for(String name : AmazonUtils.getAccountNames()) {
+				unitsPerAccount.put(name, submitAccount(engine, name));
+			}
+
+			Map<String, Integer> countPerAccount = new HashMap<String, Integer>();
+			for(Map.Entry<String, List<CollectionEngine.Unit<RegionResult>>> entry : unitsPerAccount.entrySet()) {
+				countPerAccount.put(entry.getKey(), report(engine, entry.getKey(), entry.getValue()));
+			}
+
+			log.info("Had missing tag counts: " + countPerAccount);
+		} finally {
+			engine.shutdown();
+		}
 	}
 
-	private int runForAWSAccount(String name) throws IOException {
+	private List<CollectionEngine.Unit<RegionResult>> submitAccount(CollectionEngine engine, final String name) throws IOException {
 		log.info("Start setting tags on Amazon Dev EC2 instances for account " + name);
 
-		int count = 0, missedCount = 0, missedRunningCount = 0;
-		StringBuilder missed = new StringBuilder();
-		StringBuilder missedRunning = new StringBuilder();
+		List<CollectionEngine.Unit<RegionResult>> units = new ArrayList<CollectionEngine.Unit<RegionResult>>();
 		final Map<String, String> endPoints = AmazonUtils.getEndpoints(clientConfig, name);
-		for(Map.Entry<String,String> entry : endPoints.entrySet()) {
-			AmazonEC2Client client = new AmazonEC2Client(AmazonUtils.getAwsCredentials(name), clientConfig);
-			client.setEndpoint(entry.getValue());
-			DescribeInstancesRequest instanceRequest = new DescribeInstancesRequest();
-			List<Reservation> reservations = client.describeInstances(instanceRequest).getReservations();
+		for(final Map.Entry<String,String> entry : endPoints.entrySet()) {
+			units.add(engine.submit("instances of account " + name + " in region " + entry.getKey(), new Callable<RegionResult>() {
+				@Override
+				public RegionResult call() throws Exception {
+					AmazonEC2Client client = AmazonUtils.createEC2Client(clientConfig, name);
+					client.setEndpoint(entry.getValue());
+
+					RegionResult result = classify(client);
+					tag(client, entry.getKey(), result);
+					return result;
+				}
+			}));
+		}
+		return units;
+	}
 
+	private RegionResult classify(AmazonEC2Client client) {
+		RegionResult result = new RegionResult();
+		for(List<Reservation> reservations : Pages.reservations(client, Pages.DEFAULT_PAGE_SIZE)) {
 			for(Reservation reservation : reservations) {
-				//allReservations.put(reservation, entry.getKey());
-
 				for(Instance instance : reservation.getInstances()) {
-					if(!AmazonUtils.getInstanceTag(instance, TAG_USAGE).equals(TAG_UNKNOWN)) {
+					TagRules.Tags tags = TagRules.Tags.of(instance);
+					if(tags.get(TAG_USAGE) != null) {
 						continue;
 					}
 
@@ -84,82 +144,81 @@ public class SetUsageTags {
 						continue;
 					}
 
-					String guardian = AmazonUtils.getInstanceTag(instance, "Client.Guardian");
-					//String stack = getInstanceTag(instance, "aws:cloudformation:stack-id");
-					// for now we put all untagged instances with "GDN-key" into UEMaaS as this is what most people in Gdansk work on
-					if(!guardian.equals(TAG_UNKNOWN) /*|| !stack.equals(TAG_UNKNOWN)*/ ||
-							(instance.getKeyName() != null && instance.getKeyName().equals("GDN-key"))) {
-						AmazonUtils.setUsageTag(client, instance, "UEMaaS");
-						count++;
-
-						continue;
-					}
-
-					if(AmazonUtils.getInstanceTag(instance, "Name").contains("CoE") ||
-							(instance.getKeyName() != null && instance.getKeyName().equals("coe-demo"))) {
-						// if it looks like an instance from Center of Excellence, tag it accordingly
-						AmazonUtils.setUsageTag(client, instance, "CoE");
-						count++;
-
-						continue;
-					}
-
-					if(!AmazonUtils.getInstanceTag(instance, "DemoId").equals(TAG_UNKNOWN)) {
-						// if "DemoId" is set we tag it as "CloudDemo"
-						AmazonUtils.setUsageTag(client, instance, "CloudDemo");
-						count++;
-
-						continue;
-					}
-
-					if(instance.getKeyName() != null && instance.getKeyName().equals("EasyTravelLargeDeployment")) {
-						// use "easyTravelNG" for deployment tests
-						AmazonUtils.setUsageTag(client, instance, "easyTravelNG");
-						count++;
-
-						continue;
-					}
-
-					if(!AmazonUtils.getInstanceTag(instance, "aws:elasticmapreduce:instance-group-role").equals(TAG_UNKNOWN)) {
-						// if mapreduce related, set it as "MapReduce"
-						AmazonUtils.setUsageTag(client, instance, "MapReduce");
-						count++;
+					String usage = rules.match(tags);
+					if(usage != null) {
+						List<String> ids = result.instancesPerUsage.get(usage);
+						if(ids == null) {
+							ids = new ArrayList<String>();
+							result.instancesPerUsage.put(usage, ids);
+						}
+						ids.add(instance.getInstanceId());
+						result.count++;
 
 						continue;
 					}
 
-					if(AmazonUtils.getInstanceTag(instance, "Name").toLowerCase().contains("puppet")) {
-						// if mapreduce related, set it as "MapReduce"
-						AmazonUtils.setUsageTag(client, instance, "Puppet");
-						count++;
-
-						continue;
-					}
-
-					if(AmazonUtils.getInstanceTag(instance, "Name").toLowerCase().contains("cloudera")) {
-						// if mapreduce related, set it as "MapReduce"
-						AmazonUtils.setUsageTag(client, instance, "Cloudera");
-						count++;
-
-						continue;
-					}
-
-
-					missed.append(AmazonUtils.getInstanceDescription(instance)).append("\n");
-					missedCount++;
+					result.missed.append(AmazonUtils.getInstanceDescription(instance)).append("\n");
+					result.missedCount++;
 					if(instance.getState().getName().equals(EC2_STATE_RUNNING) ||
 							instance.getState().getName().equals(EC2_STATE_PENDING)) {
-						missedRunning.append(AmazonUtils.getInstanceDescription(instance)).append("\n");
-						missedRunningCount++;
+						result.missedRunning.append(AmazonUtils.getInstanceDescription(instance)).append("\n");
+						result.missedRunningCount++;
 					}
 				}
 			}
 		}
+		return result;
+	}
+
+	private void tag(AmazonEC2Client client, String region, RegionResult result) {
+		for(Map.Entry<String, List<String>> entry : result.instancesPerUsage.entrySet()) {
+			if(dryRun) {
+				log.info("Would set tag " + entry.getKey() + " on " + entry.getValue().size() + " instances in region " + region + ": " + entry.getValue());
+				continue;
+			}
+
+			AmazonUtils.setUsageTags(client, entry.getKey(), entry.getValue());
+		}
+	}
 
-		log.warning("The following " + missedCount + " instances could not be tagged, some of them might not be running, see next log: \n" + missed.toString());
-		log.warning("The following " + missedRunningCount + " running instances could not be tagged: \n" + missedRunning.toString());
-		log.info("Tagged " + count + " instances, " + missedRunningCount + " untagged instances are running, " + missedCount + " overall untagged instances");
+	private int report(CollectionEngine engine, String name, List<CollectionEngine.Unit<RegionResult>> units) {
+		RegionResult overall = new RegionResult();
+		for(CollectionEngine.Unit<RegionResult> unit : units) {
+			RegionResult result;
+			try {
+				result = engine.await(unit);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Could not set tags for " + unit.getName(), e);
+				continue;
+			}
+			if(result == null) {
+				continue;
+			}
 
-		return missedRunningCount;
+			overall.count += result.count;
+			overall.missedCount += result.missedCount;
+			overall.missedRunningCount += result.missedRunningCount;
+			overall.missed.append(result.missed);
+			overall.missedRunning.append(result.missedRunning);
+		}
+
+		log.warning("The following " + overall.missedCount + " instances of account " + name + " could not be tagged, some of them might not be running, see next log: \n" + overall.missed.toString());
+		log.warning("The following " + overall.missedRunningCount + " running instances of account " + name + " could not be tagged: \n" + overall.missedRunning.toString());
+		log.info((dryRun ? "Would have tagged " : "Tagged ") + overall.count + " instances of account " + name + ", " + overall.missedRunningCount + " untagged instances are running, " + overall.missedCount + " overall untagged instances");
+
+		return overall.missedRunningCount;
+	}
+
+	/**
+	 * The classified instances of one region.
+	 */
+	private static class RegionResult {
+		private final Map<String, List<String>> instancesPerUsage = new HashMap<String, List<String>>();
+
+		private int count = 0;
+		private int missedCount = 0;
+		private int missedRunningCount = 0;
+		private final StringBuilder missed = new StringBuilder();
+		private final StringBuilder missedRunning = new StringBuilder();
 	}
 }
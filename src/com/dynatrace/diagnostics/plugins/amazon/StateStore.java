@@ -0,0 +1,371 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: StateStore.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+/**
+ * Small key/value store which keeps the state of the monitor across restarts, e.g. the
+ * time of the last call, the cost accumulators, prices and endpoints.
+ *
+ * Changes are appended to a journal file, one record per line, together with a checksum,
+ * so only changed values are written. When the file is loaded, records are replayed
+ * until the first incomplete or corrupted record, which is what a crash in the middle of
+ * a write leaves behind, and the rest of the file is cut off.
+ *
+ * When the journal contains many outdated records, it is compacted by writing only the
+ * current values into a separate file which is synced to disk and then renamed over the
+ * journal. Where the rename cannot replace an existing file, the journal is removed first.
+ * Either the journal or the compacted file is complete at any time, and the compacted file
+ * is only used when the journal does not exist.
+ *
+ * Changes are buffered, {@link #sync()} writes them and forces them to disk.
+ */
+public class StateStore {
+	private static final Logger log = Logger.getLogger(StateStore.class.getName());
+
+	private static final String ENCODING = "UTF-8";
+
+	private static final char OP_PUT = '+';
+	private static final char OP_REMOVE = '-';
+
+	// compact if the journal contains this many records more than there are values
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	private final File file;
+	private final Map<String, String> values = new HashMap<String, String>();
+
+	private FileOutputStream journalStream;
+	private OutputStream journal;
+	private int records = 0;
+
+	private StateStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the given journal or create it if it does not exist yet.
+	 *
+	 * @param file
+	 * @return The store with the values of the journal
+	 * @throws IOException If the journal cannot be read or written
+	 */
+	public static StateStore open(File file) throws IOException {
+		StateStore store = new StateStore(file);
+		store.load();
+		return store;
+	}
+
+	private void load() throws IOException {
+		File tmpFile = getTmpFile();
+		if(tmpFile.exists()) {
+			if(file.exists()) {
+				// a compaction which was interrupted before the old journal was removed, the journal is still complete
+				if(!tmpFile.delete()) {
+					log.warning("Could not delete incomplete compacted state " + tmpFile);
+				}
+			} else {
+				// a compaction which was interrupted between removing the old journal and the rename,
+				// the compacted state was synced to disk before the journal was removed
+				if(!tmpFile.renameTo(file)) {
+					throw new IOException("Could not restore the compacted state " + tmpFile + " as " + file);
+				}
+				log.info("Restored the state from the interrupted compaction " + tmpFile);
+			}
+		}
+
+		long valid = 0;
+		if(file.exists()) {
+			byte[] data = readFully(file);
+			int start = 0;
+			while(start < data.length) {
+				int end = start;
+				while(end < data.length && data[end] != '\n') {
+					end++;
+				}
+
+				// the last record was not completely written
+				if(end == data.length || !replay(new String(data, start, end - start, ENCODING))) {
+					break;
+				}
+
+				records++;
+				start = end + 1;
+			}
+			valid = start;
+
+			if(valid < data.length) {
+				log.warning("Ignoring " + (data.length - valid) + " bytes of incomplete state at the end of " + file);
+			}
+		}
+
+		// cut off incomplete records, new records are appended after the last complete one
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(valid);
+		} finally {
+			raf.close();
+		}
+		openJournal();
+
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Loaded " + values.size() + " values from " + records + " records in " + file);
+		}
+	}
+
+	private boolean replay(String line) {
+		int separator = line.indexOf(' ');
+		if(separator <= 0 || separator + 1 >= line.length()) {
+			return false;
+		}
+
+		String record = line.substring(separator + 1);
+		try {
+			if(Long.parseLong(line.substring(0, separator), 16) != checksum(record)) {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		// '=' is always escaped in keys and values, so the first one is the separator
+		char op = record.charAt(0);
+		int equals = record.indexOf('=', 1);
+		if(op == OP_PUT && equals != -1) {
+			values.put(unescape(record.substring(1, equals)), unescape(record.substring(equals + 1)));
+			return true;
+		} else if(op == OP_REMOVE && equals == -1) {
+			values.remove(unescape(record.substring(1)));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param key
+	 * @return The value or null if no value is stored for the key
+	 */
+	public synchronized String get(String key) {
+		return values.get(key);
+	}
+
+	/**
+	 * @param prefix
+	 * @return All values whose key starts with the prefix, with the prefix removed from the keys
+	 */
+	public synchronized Map<String, String> getAll(String prefix) {
+		Map<String, String> result = new TreeMap<String, String>();
+		for(Map.Entry<String, String> entry : values.entrySet()) {
+			if(entry.getKey().startsWith(prefix)) {
+				result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @throws IOException
+	 */
+	public synchronized void put(String key, String value) throws IOException {
+		if(value.equals(values.get(key))) {
+			return;
+		}
+
+		values.put(key, value);
+		append(OP_PUT + escape(key) + "=" + escape(value));
+		compactIfNeeded();
+	}
+
+	/**
+	 * @param key
+	 * @throws IOException
+	 */
+	public synchronized void remove(String key) throws IOException {
+		if(!values.containsKey(key)) {
+			return;
+		}
+
+		values.remove(key);
+		append(OP_REMOVE + escape(key));
+		compactIfNeeded();
+	}
+
+	/**
+	 * Replace all values whose key starts with the prefix, only changed values are written.
+	 *
+	 * @param prefix
+	 * @param newValues The new values with keys without the prefix
+	 * @throws IOException
+	 */
+	public synchronized void putAll(String prefix, Map<String, String> newValues) throws IOException {
+		for(String key : getAll(prefix).keySet()) {
+			if(!newValues.containsKey(key)) {
+				remove(prefix + key);
+			}
+		}
+		for(Map.Entry<String, String> entry : newValues.entrySet()) {
+			put(prefix + entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Force all written values to disk.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		journal.flush();
+		journalStream.getFD().sync();
+	}
+
+	public synchronized void close() throws IOException {
+		journal.close();
+	}
+
+	private void append(String record) throws IOException {
+		journal.write(toLine(record));
+		records++;
+	}
+
+	private void compactIfNeeded() throws IOException {
+		if(records - values.size() < Math.max(MIN_COMPACT_RECORDS, values.size())) {
+			return;
+		}
+
+		// write all current values to a separate file and replace the journal when it is complete
+		File tmpFile = getTmpFile();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for(Map.Entry<String, String> entry : new TreeMap<String, String>(values).entrySet()) {
+			data.write(toLine(OP_PUT + escape(entry.getKey()) + "=" + escape(entry.getValue())));
+		}
+		FileOutputStream outStream = new FileOutputStream(tmpFile);
+		try {
+			data.writeTo(outStream);
+			outStream.getFD().sync();
+		} finally {
+			outStream.close();
+		}
+
+		journal.close();
+		if(!tmpFile.renameTo(file) && (!file.delete() || !tmpFile.renameTo(file))) {
+			// keep appending to the old journal, it still contains all values
+			log.warning("Could not replace journal " + file + " with the compacted state");
+			openJournal();
+			return;
+		}
+		openJournal();
+
+		if(log.isLoggable(Level.FINE)) {
+			log.fine("Compacted " + records + " records into " + values.size() + " values in " + file);
+		}
+		records = values.size();
+	}
+
+	private void openJournal() throws IOException {
+		journalStream = new FileOutputStream(file, true);
+		journal = new BufferedOutputStream(journalStream);
+	}
+
+	private File getTmpFile() {
+		return new File(file.getParentFile(), file.getName() + ".tmp");
+	}
+
+	private static byte[] toLine(String record) throws UnsupportedEncodingException {
+		return (Long.toHexString(checksum(record)) + " " + record + "\n").getBytes(ENCODING);
+	}
+
+	private static long checksum(String record) throws UnsupportedEncodingException {
+		CRC32 crc = new CRC32();
+		crc.update(record.getBytes(ENCODING));
+		return crc.getValue();
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream((int)file.length());
+		FileInputStream inStream = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = inStream.read(buffer)) != -1) {
+				data.write(buffer, 0, read);
+			}
+		} finally {
+			inStream.close();
+		}
+		return data.toByteArray();
+	}
+
+	private static String escape(String text) {
+		StringBuilder builder = new StringBuilder(text.length());
+		for(int i = 0;i < text.length();i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '\\':
+					builder.append("\\\\");
+					break;
+				case '\n':
+					builder.append("\\n");
+					break;
+				case '\r':
+					builder.append("\\r");
+					break;
+				case '=':
+					builder.append("\\e");
+					break;
+				default:
+					builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static String unescape(String text) {
+		StringBuilder builder = new StringBuilder(text.length());
+		for(int i = 0;i < text.length();i++) {
+			char c = text.charAt(i);
+			if(c != '\\' || i + 1 == text.length()) {
+				builder.append(c);
+				continue;
+			}
+
+			i++;
+			switch (text.charAt(i)) {
+				case 'n':
+					builder.append('\n');
+					break;
+				case 'r':
+					builder.append('\r');
+					break;
+				case 'e':
+					builder.append('=');
+					break;
+				default:
+					builder.append(text.charAt(i));
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,103 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: SymbolTable.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Assigns small, stable integer ids to strings like region names or instance types,
+ * so that they can be used as array indexes instead of repeatedly hashing and comparing
+ * the strings.
+ *
+ * Ids are never removed, they are handed out in ascending order starting at zero.
+ * Looking up ids is lock-free, assigning new ids is synchronized.
+ */
+public class SymbolTable {
+	/**
+	 * Amazon region ids, e.g. us-east-1
+	 */
+	public static final SymbolTable REGIONS = new SymbolTable();
+
+	/**
+	 * EC2 instance types and RDS instance classes, e.g. m1.small or db.m1.small
+	 */
+	public static final SymbolTable INSTANCE_TYPES = new SymbolTable();
+
+	/**
+	 * States of EC2 and RDS instances, e.g. running or available
+	 */
+	public static final SymbolTable STATES = new SymbolTable();
+
+	/**
+	 * Values of tags like Usage or Owner
+	 */
+	public static final SymbolTable TAGS = new SymbolTable();
+
+	/**
+	 * Names of the monitored accounts
+	 */
+	public static final SymbolTable ACCOUNTS = new SymbolTable();
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[16];
+	private int size = 0;
+
+	/**
+	 * @param name
+	 * @return The id of the given name, a new id is assigned if the name was not seen before
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if(id != null) {
+			return id;
+		}
+
+		synchronized (this) {
+			id = ids.get(name);
+			if(id != null) {
+				return id;
+			}
+
+			if(size == names.length) {
+				String[] newNames = new String[size*2];
+				System.arraycopy(names, 0, newNames, 0, size);
+				names = newNames;
+			}
+			names[size] = name;
+
+			// publish the id only after the name is available for lookups
+			ids.put(name, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return The id of the given name or -1 if the name was never interned
+	 */
+	public int get(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * @param id
+	 * @return The name for the given id
+	 */
+	public String name(int id) {
+		return names[id];
+	}
+
+	/**
+	 * @return The number of ids that were handed out so far, all ids are smaller than this
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
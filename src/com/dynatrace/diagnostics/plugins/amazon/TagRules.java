@@ -0,0 +1,278 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: TagRules.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+
+
+/**
+ * Ordered list of rules which determine the "Usage" of an instance that does not have
+ * the Usage-Tag set.
+ *
+ * Rules are defined one per line as
+ *
+ * <pre>
+ * &lt;usage&gt; = &lt;condition&gt; | &lt;condition&gt; | ...
+ * </pre>
+ *
+ * where a rule matches if any of its conditions match and the first matching rule wins.
+ * Supported conditions are
+ * <ul>
+ * <li>has(&lt;tag&gt;) - the instance has the tag</li>
+ * <li>keyname(&lt;name&gt;) - the instance was started with the key pair</li>
+ * <li>contains(&lt;tag&gt;, &lt;text&gt;) - the value of the tag contains the text</li>
+ * <li>icontains(&lt;tag&gt;, &lt;text&gt;) - the same, but ignoring case</li>
+ * </ul>
+ *
+ * Empty lines and lines starting with '#' are ignored. Tag names are always matched
+ * ignoring case.
+ */
+public class TagRules {
+	/**
+	 * The heuristics that were used before rules could be configured.
+	 */
+	public static final String DEFAULT_RULES =
+			"# for now we put all untagged instances with \"GDN-key\" into UEMaaS as this is what most people in Gdansk work on\n" +
+			"UEMaaS = has(Client.Guardian) | keyname(GDN-key)\n" +
+			"# if it looks like an instance from Center of Excellence, tag it accordingly\n" +
+			"CoE = contains(Name, CoE) | keyname(coe-demo)\n" +
+			"CloudDemo = has(DemoId)\n" +
+			"# use \"easyTravelNG\" for deployment tests\n" +
+			"easyTravelNG = keyname(EasyTravelLargeDeployment)\n" +
+			"MapReduce = has(aws:elasticmapreduce:instance-group-role)\n" +
+			"Puppet = icontains(Name, puppet)\n" +
+			"Cloudera = icontains(Name, cloudera)\n";
+
+	public static final TagRules DEFAULT = compile(DEFAULT_RULES);
+
+	private final Rule[] rules;
+
+	private TagRules(Rule[] rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * @param text The rules, one per line
+	 * @return The compiled rules
+	 * @throws IllegalArgumentException If a rule cannot be parsed
+	 */
+	public static TagRules compile(String text) {
+		List<Rule> rules = new ArrayList<Rule>();
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		try {
+			String line;
+			int lineNumber = 0;
+			while((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				try {
+					rules.add(parseRule(line));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Could not parse tag rule in line " + lineNumber + ": '" + line + "': " + e.getMessage(), e);
+				}
+			}
+		} catch (IOException e) {
+			// cannot happen when reading from a String
+			throw new IllegalStateException(e);
+		}
+
+		return new TagRules(rules.toArray(new Rule[rules.size()]));
+	}
+
+	private static Rule parseRule(String line) {
+		int equals = line.indexOf('=');
+		if(equals <= 0) {
+			throw new IllegalArgumentException("Expected '<usage> = <condition> | ...'");
+		}
+
+		String usage = line.substring(0, equals).trim();
+		List<Condition> conditions = new ArrayList<Condition>();
+		for(String condition : line.substring(equals + 1).split("\\|")) {
+			conditions.add(parseCondition(condition.trim()));
+		}
+
+		return new Rule(usage, conditions.toArray(new Condition[conditions.size()]));
+	}
+
+	private static Condition parseCondition(String condition) {
+		int open = condition.indexOf('(');
+		if(open <= 0 || !condition.endsWith(")")) {
+			throw new IllegalArgumentException("Expected '<function>(<arguments>)' but had '" + condition + "'");
+		}
+
+		String function = condition.substring(0, open).trim();
+		String[] args = condition.substring(open + 1, condition.length() - 1).split(",", 2);
+		for(int i = 0;i < args.length;i++) {
+			args[i] = args[i].trim();
+		}
+
+		if("has".equals(function) && args.length == 1) {
+			return new Condition(Condition.HAS, args[0], null);
+		} else if("keyname".equals(function) && args.length == 1) {
+			return new Condition(Condition.KEYNAME, null, args[0]);
+		} else if("contains".equals(function) && args.length == 2) {
+			return new Condition(Condition.CONTAINS, args[0], args[1]);
+		} else if("icontains".equals(function) && args.length == 2) {
+			return new Condition(Condition.ICONTAINS, args[0], args[1].toLowerCase());
+		}
+
+		throw new IllegalArgumentException("Unknown condition '" + condition + "', expected one of has(tag), keyname(name), contains(tag, text), icontains(tag, text)");
+	}
+
+	/**
+	 * @param tags
+	 * @return The value of the Usage-Tag if set, otherwise the result of the first matching rule
+	 * 		or {@link AmazonAccountMonitor#TAG_UNKNOWN} if no rule matches.
+	 */
+	public String getUsage(Tags tags) {
+		String usage = tags.get(AmazonAccountMonitor.TAG_USAGE);
+		if(usage != null) {
+			return usage;
+		}
+
+		usage = match(tags);
+		return usage == null ? AmazonAccountMonitor.TAG_UNKNOWN : usage;
+	}
+
+	/**
+	 * @param tags
+	 * @return The usage of the first matching rule, null if no rule matches
+	 */
+	public String match(Tags tags) {
+		for(Rule rule : rules) {
+			if(rule.matches(tags)) {
+				return rule.usage;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of rules
+	 */
+	public int size() {
+		return rules.length;
+	}
+
+	/**
+	 * The tags of one instance indexed by the lower-cased tag name, built once so that
+	 * all rules can be evaluated without scanning the tags again.
+	 */
+	public static class Tags {
+		private final Map<String, String> values;
+		private final String keyName;
+
+		private Tags(Map<String, String> values, String keyName) {
+			this.values = values;
+			this.keyName = keyName;
+		}
+
+		public static Tags of(Instance instance) {
+			List<Tag> tags = instance.getTags();
+			Map<String, String> values = new HashMap<String, String>(tags.size()*2);
+			for(Tag tag : tags) {
+				String key = tag.getKey().toLowerCase();
+
+				// the first tag wins, as when looking them up one by one
+				if(!values.containsKey(key)) {
+					values.put(key, tag.getValue());
+				}
+			}
+			return new Tags(values, instance.getKeyName());
+		}
+
+		/**
+		 * @param name The name of the tag, case is ignored
+		 * @return The value of the tag or null if the instance does not have this tag
+		 */
+		public String get(String name) {
+			return values.get(name.toLowerCase());
+		}
+
+		/**
+		 * @param name The name of the tag, case is ignored
+		 * @return The value of the tag or {@link AmazonAccountMonitor#TAG_UNKNOWN} if the instance does not have this tag
+		 */
+		public String getOrUnknown(String name) {
+			String value = get(name);
+			return value == null ? AmazonAccountMonitor.TAG_UNKNOWN : value;
+		}
+
+		private String getLowerCase(String lowerCaseName) {
+			return values.get(lowerCaseName);
+		}
+	}
+
+	private static class Rule {
+		private final String usage;
+		private final Condition[] conditions;
+
+		private Rule(String usage, Condition[] conditions) {
+			this.usage = usage;
+			this.conditions = conditions;
+		}
+
+		private boolean matches(Tags tags) {
+			for(Condition condition : conditions) {
+				if(condition.matches(tags)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Condition {
+		private static final int HAS = 0;
+		private static final int KEYNAME = 1;
+		private static final int CONTAINS = 2;
+		private static final int ICONTAINS = 3;
+
+		private final int type;
+		// lower-cased to match the index in Tags
+		private final String tag;
+		private final String text;
+
+		private Condition(int type, String tag, String text) {
+			this.type = type;
+			this.tag = tag == null ? null : tag.toLowerCase();
+			this.text = text;
+		}
+
+		private boolean matches(Tags tags) {
+			switch (type) {
+				case HAS:
+					return tags.getLowerCase(tag) != null;
+				case KEYNAME:
+					return text.equals(tags.keyName);
+				case CONTAINS: {
+					String value = tags.getLowerCase(tag);
+					return value != null && value.contains(text);
+				}
+				case ICONTAINS: {
+					String value = tags.getLowerCase(tag);
+					return value != null && value.toLowerCase().contains(text);
+				}
+				default:
+					throw new IllegalStateException("Unknown condition type: " + type);
+			}
+		}
+	}
+}
@@ -0,0 +1,764 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: AmazonStandIn.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Small helper application which stands in for Amazon, so that the monitor and the other
+ * helper applications can be run against a synthetic fleet of instances of any size.
+ *
+ * It speaks the part of the Query protocol that is used here: EC2 DescribeRegions,
+ * DescribeInstances and CreateTags, RDS DescribeDBInstances and CloudFormation
+ * DescribeStacks, all with paging, and it serves the pricing files. Each request can be
+ * delayed and a part of the requests can be rejected as throttled.
+ *
+ * The services are available below the base url as /ec2/&lt;region&gt;, /rds/&lt;region&gt;
+ * and /cloudformation/&lt;region&gt;, the pricing files as /pricing/&lt;file&gt;. Set the base url
+ * as system property "com.dynatrace.diagnostics.plugins.amazon.endpointBaseUrl" for the monitor
+ * or as "endpoint" in the credentials file of the helper applications. Requests are not authenticated.
+ *
+ * Arguments, all optional:
+ * <ul>
+ * <li>--port: the port to listen on, default 8088</li>
+ * <li>--instances: the number of ec2 instances, distributed over all regions, default 1000</li>
+ * <li>--regions: the number of regions, at most 8, default 8</li>
+ * <li>--rds: the number of rds instances, default 1/10 of the ec2 instances</li>
+ * <li>--stacks: the number of cloud formation stacks, default 1/20 of the ec2 instances</li>
+ * <li>--tagged: the share of instances which have the Usage-Tag, default 0.5</li>
+ * <li>--usages, --owners: the number of different values of the Usage- and Owner-Tag, default 30 and 50</li>
+ * <li>--page-size: the maximum number of results per page, default 1000</li>
+ * <li>--latency: the delay of each request in ms, default 0</li>
+ * <li>--throttle: the share of requests which are rejected as throttled, default 0</li>
+ * <li>--seed: the seed for generating the fleet, default 0</li>
+ * </ul>
+ */
+public class AmazonStandIn {
+	private static final Logger log = Logger.getLogger(AmazonStandIn.class.getName());
+
+	// the regions and their names in the pricing files
+	private static final String[][] REGIONS = new String[][] {
+		{ "us-east-1", "us-east" },
+		{ "us-west-1", "us-west" },
+		{ "us-west-2", "us-west-2" },
+		{ "eu-west-1", "eu-ireland" },
+		{ "ap-southeast-1", "apac-sin" },
+		{ "ap-southeast-2", "apac-syd" },
+		{ "ap-northeast-1", "apac-tokyo" },
+		{ "sa-east-1", "sa-east-1" },
+	};
+
+	static final String[] INSTANCE_TYPES = new String[] { "t1.micro", "m1.small", "m1.medium", "m1.large", "m1.xlarge",
+		"m3.xlarge", "m3.2xlarge", "c1.medium", "c1.xlarge", "c3.large", "c3.xlarge", "m2.xlarge", "m2.2xlarge",
+		"m2.4xlarge", "cc2.8xlarge", "cr1.8xlarge", "hi1.4xlarge", "hs1.8xlarge", "cg1.4xlarge", "g2.2xlarge" };
+	static final String[] DB_INSTANCE_CLASSES = new String[] { "db.t1.micro", "db.m1.small", "db.m1.medium", "db.m1.large",
+		"db.m1.xlarge", "db.m2.xlarge", "db.m2.2xlarge", "db.m2.4xlarge" };
+
+	// running instances are the majority, a few are changing their state
+	private static final String[] EC2_STATES = new String[] { "running", "running", "running", "running", "running",
+		"running", "stopped", "stopped", "terminated", "pending", "stopping", "shutting-down" };
+	private static final int[] EC2_STATE_CODES = new int[] { 16, 16, 16, 16, 16, 16, 80, 80, 48, 0, 64, 32 };
+	private static final String[] RDS_STATES = new String[] { "available", "available", "available", "backing-up", "modifying" };
+	private static final String[] STACK_STATES = new String[] { "CREATE_COMPLETE", "CREATE_COMPLETE", "UPDATE_COMPLETE",
+		"CREATE_IN_PROGRESS", "ROLLBACK_COMPLETE", "DELETE_FAILED" };
+	private static final String[] KEY_NAMES = new String[] { "GDN-key", "coe-demo", "EasyTravelLargeDeployment", "dev-key", "build-key" };
+
+	private static final String EC2_NAMESPACE = "http://ec2.amazonaws.com/doc/2013-10-15/";
+	private static final String RDS_NAMESPACE = "http://rds.amazonaws.com/doc/2013-09-09/";
+	private static final String CLOUD_FORMATION_NAMESPACE = "http://cloudformation.amazonaws.com/doc/2010-05-15/";
+
+	private static final String ENCODING = "UTF-8";
+
+	private final Options options;
+	private final Map<String, Region> regions = new LinkedHashMap<String, Region>();
+	private final Random random;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+
+	/**
+	 * Generate the fleet as configured, the server is started with {@link #start()}.
+	 *
+	 * @param options
+	 */
+	public AmazonStandIn(Options options) {
+		this.options = options;
+		this.random = new Random(options.seed);
+
+		int regionCount = Math.max(1, Math.min(options.regions, REGIONS.length));
+		for(int i = 0;i < regionCount;i++) {
+			regions.put(REGIONS[i][0], new Region(REGIONS[i][0]));
+		}
+		generate();
+	}
+
+	public static void main(String[] args) throws IOException {
+		AmazonUtils.init(null);
+
+		AmazonStandIn standIn = new AmazonStandIn(Options.parse(args));
+		standIn.start();
+		log.info("Serving Amazon stand-in at " + standIn.getBaseUrl() + ", press Ctrl-C to stop");
+	}
+
+	public synchronized void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", options.port), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					AmazonStandIn.this.handle(exchange);
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Failed to handle request " + exchange.getRequestURI(), e);
+					send(exchange, 500, "text/plain", e.toString());
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+
+		// enough threads to not become the bottleneck of the collection threads of the monitor
+		executor = Executors.newFixedThreadPool(32);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public synchronized void stop() {
+		if(server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	/**
+	 * @return The url below which all services are available, e.g. http://127.0.0.1:8088
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * @return The number of requests which were received
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return The number of requests which were rejected as throttled
+	 */
+	public long getThrottled() {
+		return throttled.get();
+	}
+
+	/**
+	 * @return The cost-properties for the rds instances, which are not part of the pricing files
+	 */
+	public String getRDSCostProperties() {
+		StringBuilder properties = new StringBuilder();
+		for(String region : regions.keySet()) {
+			for(int i = 0;i < DB_INSTANCE_CLASSES.length;i++) {
+				properties.append(PriceTable.getPropertyName(region, DB_INSTANCE_CLASSES[i], PriceTable.OS_NONE)).
+					append('=').append(getPrice(region, i, 2)).append('\n');
+			}
+		}
+		return properties.toString();
+	}
+
+	private void generate() {
+		List<Region> regionList = new ArrayList<Region>(regions.values());
+		long now = System.currentTimeMillis();
+		SimpleDateFormat reasonFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		reasonFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+		for(int i = 0;i < options.instances;i++) {
+			Region region = regionList.get(i % regionList.size());
+			Ec2Instance instance = new Ec2Instance();
+			instance.id = String.format("i-%08x", i);
+			instance.type = INSTANCE_TYPES[random.nextInt(INSTANCE_TYPES.length)];
+			int state = random.nextInt(EC2_STATES.length);
+			instance.state = EC2_STATES[state];
+			instance.stateCode = EC2_STATE_CODES[state];
+			instance.launchTime = now - random.nextInt(60*24)*60L*1000;
+			if(instance.stateCode == 80 || instance.stateCode == 48) {
+				instance.reason = "User initiated (" + reasonFormat.format(new Date(instance.launchTime + random.nextInt(60)*60L*1000)) + " GMT)";
+			}
+			instance.keyName = KEY_NAMES[random.nextInt(KEY_NAMES.length)];
+			instance.windows = random.nextInt(5) == 0;
+
+			instance.tags.put("Name", "server-" + random.nextInt(1000) + (random.nextInt(10) == 0 ? "-puppet" : ""));
+			instance.tags.put("Owner", "owner" + random.nextInt(options.owners));
+			if(random.nextDouble() < options.tagged) {
+				instance.tags.put("Usage", "usage" + random.nextInt(options.usages));
+			}
+			if(random.nextInt(4) == 0) {
+				instance.tags.put("Client.Guardian", "guardian");
+			}
+			instance.tags.put("aws:cloudformation:stack-name", "stack-" + random.nextInt(100));
+			instance.tags.put("Environment", random.nextBoolean() ? "test" : "production");
+			region.instances.put(instance.id, instance);
+		}
+
+		for(int i = 0;i < options.rds;i++) {
+			Region region = regionList.get(i % regionList.size());
+			DbInstance instance = new DbInstance();
+			instance.id = "db-" + i;
+			instance.instanceClass = DB_INSTANCE_CLASSES[random.nextInt(DB_INSTANCE_CLASSES.length)];
+			instance.status = RDS_STATES[random.nextInt(RDS_STATES.length)];
+			instance.createTime = now - random.nextInt(60*24)*60L*1000;
+			region.dbInstances.add(instance);
+		}
+
+		for(int i = 0;i < options.stacks;i++) {
+			Region region = regionList.get(i % regionList.size());
+			Stack stack = new Stack();
+			stack.name = "stack-" + i;
+			stack.status = STACK_STATES[random.nextInt(STACK_STATES.length)];
+			stack.creationTime = now - random.nextInt(60*24)*60L*1000;
+			region.stacks.add(stack);
+		}
+
+		log.info("Generated " + options.instances + " ec2 instances, " + options.rds + " rds instances and " +
+				options.stacks + " stacks in regions " + regions.keySet());
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+
+		if(options.latency > 0) {
+			try {
+				Thread.sleep(options.latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		// path is /<service>[/<region>] or /pricing/<file>
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		String service = path.length > 1 ? path[1] : "";
+		String regionName = path.length > 2 ? path[2] : null;
+
+		if(AmazonUtils.PATH_PRICING.equals(service) && regionName != null) {
+			handlePricing(exchange, regionName);
+			return;
+		}
+
+		Region region = regionName == null ? null : regions.get(regionName);
+		if(regionName != null && region == null) {
+			send(exchange, 404, "text/plain", "Unknown region " + regionName);
+			return;
+		}
+
+		Map<String, String> params = readParameters(exchange);
+		String action = params.get("Action");
+
+		if(isThrottled()) {
+			throttled.incrementAndGet();
+			if(AmazonUtils.SERVICE_EC2.equals(service)) {
+				send(exchange, 503, "text/xml", "<Response><Errors><Error><Code>RequestLimitExceeded</Code>" +
+						"<Message>Request limit exceeded.</Message></Error></Errors><RequestID>" + requestId() + "</RequestID></Response>");
+			} else {
+				send(exchange, 400, "text/xml", "<ErrorResponse><Error><Type>Sender</Type><Code>Throttling</Code>" +
+						"<Message>Rate exceeded</Message></Error><RequestId>" + requestId() + "</RequestId></ErrorResponse>");
+			}
+			return;
+		}
+
+		if(AmazonUtils.SERVICE_EC2.equals(service) && "DescribeRegions".equals(action)) {
+			describeRegions(exchange);
+		} else if(AmazonUtils.SERVICE_EC2.equals(service) && region != null && "DescribeInstances".equals(action)) {
+			describeInstances(exchange, region, params);
+		} else if(AmazonUtils.SERVICE_EC2.equals(service) && region != null && "CreateTags".equals(action)) {
+			createTags(exchange, region, params);
+		} else if(AmazonUtils.SERVICE_RDS.equals(service) && region != null && "DescribeDBInstances".equals(action)) {
+			describeDBInstances(exchange, region, params);
+		} else if(AmazonUtils.SERVICE_CLOUD_FORMATION.equals(service) && region != null && "DescribeStacks".equals(action)) {
+			describeStacks(exchange, region, params);
+		} else {
+			log.warning("Unsupported request for service " + service + " and region " + regionName + ": " + params);
+			send(exchange, 400, "text/xml", "<Response><Errors><Error><Code>InvalidAction</Code>" +
+					"<Message>The action " + escape(action) + " is not valid for this web service.</Message></Error></Errors>" +
+					"<RequestID>" + requestId() + "</RequestID></Response>");
+		}
+	}
+
+	private void describeRegions(HttpExchange exchange) throws IOException {
+		// use the address that the client used to reach us
+		String host = exchange.getRequestHeaders().getFirst("Host");
+		if(host == null) {
+			host = "127.0.0.1:" + server.getAddress().getPort();
+		}
+
+		StringBuilder xml = new StringBuilder();
+		xml.append("<DescribeRegionsResponse xmlns=\"").append(EC2_NAMESPACE).append("\"><requestId>").append(requestId()).append("</requestId><regionInfo>");
+		for(String region : regions.keySet()) {
+			xml.append("<item><regionName>").append(region).append("</regionName><regionEndpoint>http://").append(host).
+				append('/').append(AmazonUtils.SERVICE_EC2).append('/').append(region).append("</regionEndpoint></item>");
+		}
+		xml.append("</regionInfo></DescribeRegionsResponse>");
+		send(exchange, 200, "text/xml", xml.toString());
+	}
+
+	private void describeInstances(HttpExchange exchange, Region region, Map<String, String> params) throws IOException {
+		Map<String, List<String>> filters = getFilters(params);
+		List<Ec2Instance> matches = new ArrayList<Ec2Instance>();
+		synchronized (region) {
+			for(Ec2Instance instance : region.instances.values()) {
+				if(instance.matches(filters)) {
+					matches.add(instance);
+				}
+			}
+		}
+
+		int start = getStart(params.get("NextToken"));
+		int end = Math.min(matches.size(), start + getPageSize(params.get("MaxResults")));
+
+		SimpleDateFormat format = getDateFormat();
+		StringBuilder xml = new StringBuilder();
+		xml.append("<DescribeInstancesResponse xmlns=\"").append(EC2_NAMESPACE).append("\"><requestId>").append(requestId()).append("</requestId><reservationSet>");
+		synchronized (region) {
+			// one reservation per instance, which is what most accounts look like
+			for(int i = start;i < end;i++) {
+				Ec2Instance instance = matches.get(i);
+				xml.append("<item><reservationId>r-").append(instance.id.substring(2)).append("</reservationId><ownerId>123456789012</ownerId><groupSet/><instancesSet><item>");
+				xml.append("<instanceId>").append(instance.id).append("</instanceId><imageId>ami-12345678</imageId>");
+				xml.append("<instanceState><code>").append(instance.stateCode).append("</code><name>").append(instance.state).append("</name></instanceState>");
+				xml.append("<privateDnsName/><dnsName/>");
+				xml.append("<reason>").append(instance.reason == null ? "" : escape(instance.reason)).append("</reason>");
+				xml.append("<keyName>").append(escape(instance.keyName)).append("</keyName>");
+				xml.append("<instanceType>").append(instance.type).append("</instanceType>");
+				xml.append("<launchTime>").append(format.format(new Date(instance.launchTime))).append("</launchTime>");
+				xml.append("<placement><availabilityZone>").append(region.name).append("a</availabilityZone><tenancy>default</tenancy></placement>");
+				if(instance.windows) {
+					xml.append("<platform>windows</platform>");
+				}
+				xml.append("<virtualizationType>").append(instance.windows ? "hvm" : "paravirtual").append("</virtualizationType>");
+				xml.append("<tagSet>");
+				for(Map.Entry<String, String> tag : instance.tags.entrySet()) {
+					xml.append("<item><key>").append(escape(tag.getKey())).append("</key><value>").append(escape(tag.getValue())).append("</value></item>");
+				}
+				xml.append("</tagSet></item></instancesSet></item>");
+			}
+		}
+		xml.append("</reservationSet>");
+		if(end < matches.size()) {
+			xml.append("<nextToken>").append(end).append("</nextToken>");
+		}
+		xml.append("</DescribeInstancesResponse>");
+		send(exchange, 200, "text/xml", xml.toString());
+	}
+
+	private void createTags(HttpExchange exchange, Region region, Map<String, String> params) throws IOException {
+		Map<String, String> tags = new LinkedHashMap<String, String>();
+		for(int i = 1;params.containsKey("Tag." + i + ".Key");i++) {
+			String value = params.get("Tag." + i + ".Value");
+			tags.put(params.get("Tag." + i + ".Key"), value == null ? "" : value);
+		}
+
+		synchronized (region) {
+			for(int i = 1;params.containsKey("ResourceId." + i);i++) {
+				Ec2Instance instance = region.instances.get(params.get("ResourceId." + i));
+				if(instance == null) {
+					send(exchange, 400, "text/xml", "<Response><Errors><Error><Code>InvalidInstanceID.NotFound</Code>" +
+							"<Message>The instance ID '" + escape(params.get("ResourceId." + i)) + "' does not exist</Message></Error></Errors>" +
+							"<RequestID>" + requestId() + "</RequestID></Response>");
+					return;
+				}
+				instance.tags.putAll(tags);
+			}
+		}
+
+		send(exchange, 200, "text/xml", "<CreateTagsResponse xmlns=\"" + EC2_NAMESPACE + "\"><requestId>" + requestId() +
+				"</requestId><return>true</return></CreateTagsResponse>");
+	}
+
+	private void describeDBInstances(HttpExchange exchange, Region region, Map<String, String> params) throws IOException {
+		int start = getStart(params.get("Marker"));
+		int end = Math.min(region.dbInstances.size(), start + getPageSize(params.get("MaxRecords")));
+
+		SimpleDateFormat format = getDateFormat();
+		StringBuilder xml = new StringBuilder();
+		xml.append("<DescribeDBInstancesResponse xmlns=\"").append(RDS_NAMESPACE).append("\"><DescribeDBInstancesResult>");
+		if(end < region.dbInstances.size()) {
+			xml.append("<Marker>").append(end).append("</Marker>");
+		}
+		xml.append("<DBInstances>");
+		for(int i = start;i < end;i++) {
+			DbInstance instance = region.dbInstances.get(i);
+			xml.append("<DBInstance><DBInstanceIdentifier>").append(instance.id).append("</DBInstanceIdentifier>");
+			xml.append("<DBInstanceClass>").append(instance.instanceClass).append("</DBInstanceClass>");
+			xml.append("<DBInstanceStatus>").append(instance.status).append("</DBInstanceStatus>");
+			xml.append("<Engine>mysql</Engine>");
+			xml.append("<InstanceCreateTime>").append(format.format(new Date(instance.createTime))).append("</InstanceCreateTime>");
+			xml.append("</DBInstance>");
+		}
+		xml.append("</DBInstances></DescribeDBInstancesResult><ResponseMetadata><RequestId>").append(requestId()).
+			append("</RequestId></ResponseMetadata></DescribeDBInstancesResponse>");
+		send(exchange, 200, "text/xml", xml.toString());
+	}
+
+	private void describeStacks(HttpExchange exchange, Region region, Map<String, String> params) throws IOException {
+		// Amazon decides on the page size of DescribeStacks
+		int start = getStart(params.get("NextToken"));
+		int end = Math.min(region.stacks.size(), start + getPageSize(null));
+
+		SimpleDateFormat format = getDateFormat();
+		StringBuilder xml = new StringBuilder();
+		xml.append("<DescribeStacksResponse xmlns=\"").append(CLOUD_FORMATION_NAMESPACE).append("\"><DescribeStacksResult><Stacks>");
+		for(int i = start;i < end;i++) {
+			Stack stack = region.stacks.get(i);
+			xml.append("<member><StackName>").append(stack.name).append("</StackName>");
+			xml.append("<StackId>arn:aws:cloudformation:").append(region.name).append(":123456789012:stack/").append(stack.name).append("/").append(i).append("</StackId>");
+			xml.append("<StackStatus>").append(stack.status).append("</StackStatus>");
+			xml.append("<CreationTime>").append(format.format(new Date(stack.creationTime))).append("</CreationTime>");
+			xml.append("</member>");
+		}
+		xml.append("</Stacks>");
+		if(end < region.stacks.size()) {
+			xml.append("<NextToken>").append(end).append("</NextToken>");
+		}
+		xml.append("</DescribeStacksResult><ResponseMetadata><RequestId>").append(requestId()).
+			append("</RequestId></ResponseMetadata></DescribeStacksResponse>");
+		send(exchange, 200, "text/xml", xml.toString());
+	}
+
+	private void handlePricing(HttpExchange exchange, String file) throws IOException {
+		// the prices never change, so the file can always be reported as unchanged
+		String etag = "\"" + AmazonUtils.PATH_PRICING + "-" + regions.size() + "\"";
+		if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+
+		// the combined file names the OS in each column, the others only by their name
+		boolean combined = file.endsWith(".json");
+		boolean windows = file.startsWith("mswin");
+
+		StringBuilder json = new StringBuilder();
+		json.append("/*\n * Synthetic prices of the Amazon stand-in\n */\ncallback({vers:0.01,config:{rate:\"perhr\",valueColumns:[\"");
+		json.append(combined ? "linux\",\"mswin" : "os").append("\"],currencies:[\"USD\"],regions:[");
+		int regionIndex = 0;
+		for(String region : regions.keySet()) {
+			if(regionIndex > 0) {
+				json.append(',');
+			}
+			json.append("{region:\"").append(getPricingRegion(region)).append("\",instanceTypes:[{type:\"generalCurrentGen\",sizes:[");
+			for(int type = 0;type < INSTANCE_TYPES.length;type++) {
+				if(type > 0) {
+					json.append(',');
+				}
+				json.append("{size:\"").append(INSTANCE_TYPES[type]).append("\",valueColumns:[");
+				if(combined) {
+					json.append("{name:\"linux\",prices:{USD:\"").append(getPrice(region, type, 0)).append("\"}},");
+					json.append("{name:\"mswin\",prices:{USD:\"").append(getPrice(region, type, 1)).append("\"}}");
+				} else {
+					json.append("{name:\"os\",prices:{USD:\"").append(getPrice(region, type, windows ? 1 : 0)).append("\"}}");
+				}
+				json.append("]}");
+			}
+			json.append("]}]}");
+			regionIndex++;
+		}
+		json.append("]}});");
+
+		exchange.getResponseHeaders().set("ETag", etag);
+		send(exchange, 200, "application/javascript", json.toString());
+	}
+
+	private static String getPricingRegion(String region) {
+		for(String[] names : REGIONS) {
+			if(names[0].equals(region)) {
+				return names[1];
+			}
+		}
+		throw new IllegalArgumentException("Unknown region " + region);
+	}
+
+	/**
+	 * @return A price which is stable for the region, type and OS, with OS 2 for rds
+	 */
+	private static String getPrice(String region, int type, int os) {
+		int cents = 2 + type*7 + os*5 + Math.abs(region.hashCode() % 5);
+		return String.format("%.3f", cents / 100.0).replace(',', '.');
+	}
+
+	private int getPageSize(String maxResults) {
+		if(maxResults == null) {
+			return options.pageSize;
+		}
+		return Math.max(1, Math.min(options.pageSize, Integer.parseInt(maxResults)));
+	}
+
+	private static int getStart(String token) {
+		return token == null || token.isEmpty() ? 0 : Integer.parseInt(token);
+	}
+
+	/**
+	 * @return The values of each filter, e.g. Filter.1.Name=instance-state-name with Filter.1.Value.1=pending
+	 */
+	private static Map<String, List<String>> getFilters(Map<String, String> params) {
+		Map<String, List<String>> filters = new HashMap<String, List<String>>();
+		for(int i = 1;params.containsKey("Filter." + i + ".Name");i++) {
+			List<String> values = new ArrayList<String>();
+			for(int j = 1;params.containsKey("Filter." + i + ".Value." + j);j++) {
+				values.add(params.get("Filter." + i + ".Value." + j));
+			}
+			filters.put(params.get("Filter." + i + ".Name"), values);
+		}
+		return filters;
+	}
+
+	private static Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		addParameters(params, exchange.getRequestURI().getRawQuery());
+
+		InputStream stream = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = stream.read(buffer)) != -1) {
+			body.write(buffer, 0, read);
+		}
+		addParameters(params, body.toString(ENCODING));
+		return params;
+	}
+
+	private static void addParameters(Map<String, String> params, String query) throws UnsupportedEncodingException {
+		if(query == null || query.isEmpty()) {
+			return;
+		}
+
+		for(String param : query.split("&")) {
+			int equals = param.indexOf('=');
+			if(equals == -1) {
+				params.put(URLDecoder.decode(param, ENCODING), "");
+			} else {
+				params.put(URLDecoder.decode(param.substring(0, equals), ENCODING), URLDecoder.decode(param.substring(equals + 1), ENCODING));
+			}
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String content) throws IOException {
+		byte[] data = content.getBytes(ENCODING);
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=" + ENCODING);
+		exchange.sendResponseHeaders(status, data.length);
+		OutputStream stream = exchange.getResponseBody();
+		try {
+			stream.write(data);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private synchronized boolean isThrottled() {
+		return options.throttle > 0 && random.nextDouble() < options.throttle;
+	}
+
+	private static String requestId() {
+		return Long.toHexString(System.nanoTime());
+	}
+
+	private static SimpleDateFormat getDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
+	private static String escape(String text) {
+		if(text == null) {
+			return "";
+		}
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Size and behavior of the stand-in.
+	 */
+	public static class Options {
+		int port = 8088;
+		int instances = 1000;
+		int regions = REGIONS.length;
+		int rds = -1;
+		int stacks = -1;
+		double tagged = 0.5;
+		int usages = 30;
+		int owners = 50;
+		int pageSize = 1000;
+		long latency = 0;
+		double throttle = 0;
+		long seed = 0;
+
+		/**
+		 * @param args The arguments as described in {@link AmazonStandIn}
+		 * @return The options, unknown arguments are ignored
+		 * @throws IllegalArgumentException If the value of an argument is missing or invalid
+		 */
+		public static Options parse(String[] args) {
+			Options options = new Options();
+			for(int i = 0;i < args.length;i++) {
+				if(!args[i].startsWith("--")) {
+					continue;
+				}
+				if(i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for argument " + args[i]);
+				}
+
+				String name = args[i];
+				String value = args[++i];
+				if("--port".equals(name)) {
+					options.port = Integer.parseInt(value);
+				} else if("--instances".equals(name)) {
+					options.instances = Integer.parseInt(value);
+				} else if("--regions".equals(name)) {
+					options.regions = Integer.parseInt(value);
+				} else if("--rds".equals(name)) {
+					options.rds = Integer.parseInt(value);
+				} else if("--stacks".equals(name)) {
+					options.stacks = Integer.parseInt(value);
+				} else if("--tagged".equals(name)) {
+					options.tagged = Double.parseDouble(value);
+				} else if("--usages".equals(name)) {
+					options.usages = Integer.parseInt(value);
+				} else if("--owners".equals(name)) {
+					options.owners = Integer.parseInt(value);
+				} else if("--page-size".equals(name)) {
+					options.pageSize = Integer.parseInt(value);
+				} else if("--latency".equals(name)) {
+					options.latency = Long.parseLong(value);
+				} else if("--throttle".equals(name)) {
+					options.throttle = Double.parseDouble(value);
+				} else if("--seed".equals(name)) {
+					options.seed = Long.parseLong(value);
+				} else {
+					// let callers add their own arguments
+					i--;
+				}
+			}
+			return options.withInstances(options.instances);
+		}
+
+		/**
+		 * @param instances
+		 * @return A copy with the given number of ec2 instances, rds instances and stacks scale along if not set explicitly
+		 */
+		public Options withInstances(int instances) {
+			Options options = new Options();
+			options.port = port;
+			options.instances = instances;
+			options.regions = regions;
+			options.rds = rds < 0 ? instances / 10 : rds;
+			options.stacks = stacks < 0 ? instances / 20 : stacks;
+			options.tagged = tagged;
+			options.usages = Math.max(1, usages);
+			options.owners = Math.max(1, owners);
+			options.pageSize = Math.max(1, pageSize);
+			options.latency = latency;
+			options.throttle = throttle;
+			options.seed = seed;
+			return options;
+		}
+	}
+
+	private static class Region {
+		private final String name;
+		// by id, in the order they were created
+		private final Map<String, Ec2Instance> instances = new LinkedHashMap<String, Ec2Instance>();
+		private final List<DbInstance> dbInstances = new ArrayList<DbInstance>();
+		private final List<Stack> stacks = new ArrayList<Stack>();
+
+		private Region(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class Ec2Instance {
+		private String id;
+		private String type;
+		private String state;
+		private int stateCode;
+		private String reason;
+		private long launchTime;
+		private String keyName;
+		private boolean windows;
+		private final Map<String, String> tags = new LinkedHashMap<String, String>();
+
+		/**
+		 * Supports the filters which are used for incremental collection.
+		 */
+		private boolean matches(Map<String, List<String>> filters) {
+			for(Map.Entry<String, List<String>> filter : filters.entrySet()) {
+				final String value;
+				if("instance-state-name".equals(filter.getKey())) {
+					value = state;
+				} else if("instance-id".equals(filter.getKey())) {
+					value = id;
+				} else if("launch-time".equals(filter.getKey())) {
+					value = getDateFormat().format(new Date(launchTime));
+				} else {
+					throw new IllegalArgumentException("Unsupported filter " + filter.getKey());
+				}
+
+				if(!matchesAny(value, filter.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean matchesAny(String value, List<String> patterns) {
+			for(String pattern : patterns) {
+				// only trailing wildcards are supported
+				if(pattern.endsWith("*") ? value.startsWith(pattern.substring(0, pattern.length() - 1)) : value.equals(pattern)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class DbInstance {
+		private String id;
+		private String instanceClass;
+		private String status;
+		private long createTime;
+	}
+
+	private static class Stack {
+		private String name;
+		private String status;
+		private long creationTime;
+	}
+}
@@ -0,0 +1,465 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: Benchmarks.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+
+
+/**
+ * Small helper application which measures the code paths that dominate the runs for large
+ * accounts: summing up dynamic measures, finding the Usage of instances via the tag rules,
+ * looking up and integrating the costs of instances and parsing the pricing files.
+ *
+ * Each benchmark is run for 100 up to 100.000 generated instances. It is warmed up first
+ * and then repeated for a fixed time per iteration, the median time of all iterations is
+ * reported per operation and per instance.
+ *
+ * Arguments:
+ * <ul>
+ * <li>--out &lt;file&gt;: store the results as properties, e.g. to use them as baseline later</li>
+ * <li>--baseline &lt;file&gt;: compare with stored results and fail if a benchmark got more than 25% slower</li>
+ * <li>recorded pricing files, e.g. linux-od.min.js, which are parsed from memory</li>
+ * </ul>
+ */
+public class Benchmarks {
+	private static final Logger log = Logger.getLogger(Benchmarks.class.getName());
+
+	private static final String ARG_OUT = "--out";
+	private static final String ARG_BASELINE = "--baseline";
+
+	private static final int[] INSTANCE_COUNTS = new int[] { 100, 1000, 10000, 100000 };
+
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 500L*1000*1000;
+
+	// how much slower than the baseline a benchmark may get
+	private static final double MAX_REGRESSION = 1.25;
+
+	private static final String[] REGIONS = new String[] { "us-east-1", "us-west-1", "us-west-2", "eu-west-1",
+		"ap-southeast-1", "ap-southeast-2", "ap-northeast-1", "sa-east-1" };
+	private static final String[] TYPES = new String[] { "t1.micro", "m1.small", "m1.medium", "m1.large", "m1.xlarge",
+		"m3.xlarge", "m3.2xlarge", "c1.medium", "c1.xlarge", "c3.large", "c3.xlarge", "m2.xlarge", "m2.2xlarge",
+		"m2.4xlarge", "cc2.8xlarge", "cr1.8xlarge", "hi1.4xlarge", "hs1.8xlarge", "cg1.4xlarge", "g2.2xlarge" };
+	private static final String[] STATES = new String[] { "running", "running", "running", "stopped", "pending", "terminated" };
+	private static final String[] KEY_NAMES = new String[] { "GDN-key", "coe-demo", "EasyTravelLargeDeployment", "dev-key", "build-key" };
+	private static final int USAGES = 30;
+	private static final int OWNERS = 50;
+
+	// results of the operations are added here, so the JIT cannot remove them
+	private static volatile double sink;
+
+	public static void main(String[] args) throws IOException {
+		File out = null;
+		File baseline = null;
+		List<File> pricingFiles = new ArrayList<File>();
+		for(int i = 0;i < args.length;i++) {
+			if(ARG_OUT.equals(args[i]) && i + 1 < args.length) {
+				out = new File(args[++i]);
+			} else if(ARG_BASELINE.equals(args[i]) && i + 1 < args.length) {
+				baseline = new File(args[++i]);
+			} else {
+				pricingFiles.add(new File(args[i]));
+			}
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new MeasureBenchmark());
+		benchmarks.add(new UsageTagBenchmark());
+		benchmarks.add(new PriceNameBenchmark());
+		benchmarks.add(new PriceTableBenchmark());
+		benchmarks.add(new CostIntegratorBenchmark());
+
+		Properties results = new Properties();
+		for(Benchmark benchmark : benchmarks) {
+			for(int count : INSTANCE_COUNTS) {
+				benchmark.setup(count);
+				double nanos = measure(benchmark);
+				log.info(String.format("%-14s %7d instances: %,14.0f ns/op %,10.1f ns/instance", benchmark.getName(), count, nanos, nanos / count));
+				results.setProperty(benchmark.getName() + "." + count, Double.toString(nanos));
+			}
+		}
+
+		if(pricingFiles.isEmpty()) {
+			log.info("No recorded pricing files specified, not measuring the parsing of prices");
+		}
+		for(File file : pricingFiles) {
+			PriceParserBenchmark benchmark = new PriceParserBenchmark(file);
+			double nanos = measure(benchmark);
+			log.info(String.format("%-14s %s: %,14.0f ns/op, %d prices", benchmark.getName(), file.getName(), nanos, benchmark.prices));
+			results.setProperty(benchmark.getName() + "." + file.getName(), Double.toString(nanos));
+		}
+
+		if(out != null) {
+			OutputStream stream = new FileOutputStream(out);
+			try {
+				results.store(stream, "Results of " + Benchmarks.class.getSimpleName() + " in ns/op");
+			} finally {
+				stream.close();
+			}
+			log.info("Stored results in " + out);
+		}
+
+		if(baseline != null && !compare(results, baseline)) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return The median duration of one operation in ns
+	 */
+	private static double measure(Benchmark benchmark) {
+		for(int i = 0;i < WARMUP_ITERATIONS;i++) {
+			iteration(benchmark);
+		}
+
+		double[] nanos = new double[ITERATIONS];
+		for(int i = 0;i < ITERATIONS;i++) {
+			nanos[i] = iteration(benchmark);
+		}
+		Arrays.sort(nanos);
+		return nanos[ITERATIONS/2];
+	}
+
+	private static double iteration(Benchmark benchmark) {
+		long start = System.nanoTime();
+		long end;
+		long ops = 0;
+		double result = 0;
+		do {
+			result += benchmark.run();
+			ops++;
+			end = System.nanoTime();
+		} while(end - start < ITERATION_NANOS);
+
+		sink += result;
+		return (double)(end - start) / ops;
+	}
+
+	private static boolean compare(Properties results, File file) throws IOException {
+		Properties baseline = new Properties();
+		InputStream stream = new FileInputStream(file);
+		try {
+			baseline.load(stream);
+		} finally {
+			stream.close();
+		}
+
+		boolean success = true;
+		for(String name : results.stringPropertyNames()) {
+			String previous = baseline.getProperty(name);
+			if(previous == null) {
+				continue;
+			}
+
+			double ratio = Double.parseDouble(results.getProperty(name)) / Double.parseDouble(previous);
+			if(ratio > MAX_REGRESSION) {
+				log.warning(String.format("%s got slower by %.0f%% compared to %s", name, (ratio - 1)*100, file));
+				success = false;
+			}
+		}
+		return success;
+	}
+
+	private static Instance createInstance(Random random, int index) {
+		Instance instance = new Instance();
+		instance.setInstanceId(String.format("i-%08x", index));
+		instance.setKeyName(KEY_NAMES[random.nextInt(KEY_NAMES.length)]);
+
+		// most instances carry a handful of tags, only some of them the Usage-Tag
+		List<Tag> tags = new ArrayList<Tag>();
+		tags.add(new Tag("Name", "server-" + random.nextInt(1000) + (random.nextInt(10) == 0 ? "-puppet" : "")));
+		tags.add(new Tag("Owner", "owner" + random.nextInt(OWNERS)));
+		if(random.nextBoolean()) {
+			tags.add(new Tag("Usage", "usage" + random.nextInt(USAGES)));
+		}
+		if(random.nextInt(4) == 0) {
+			tags.add(new Tag("Client.Guardian", "guardian"));
+		}
+		tags.add(new Tag("aws:cloudformation:stack-name", "stack-" + random.nextInt(100)));
+		tags.add(new Tag("aws:cloudformation:logical-id", "Server"));
+		tags.add(new Tag("Environment", random.nextBoolean() ? "test" : "production"));
+		tags.add(new Tag("Team", "team" + random.nextInt(10)));
+		instance.setTags(tags);
+		return instance;
+	}
+
+	private static Inventory createInventory(int count) {
+		Random random = new Random(count);
+		long now = System.currentTimeMillis();
+
+		Inventory inventory = new Inventory(count);
+		int account = SymbolTable.ACCOUNTS.intern("benchmark");
+		for(int i = 0;i < count;i++) {
+			inventory.add(String.format("i-%08x", i), account,
+					SymbolTable.REGIONS.intern(REGIONS[random.nextInt(REGIONS.length)]),
+					SymbolTable.INSTANCE_TYPES.intern(TYPES[random.nextInt(TYPES.length)]),
+					SymbolTable.STATES.intern(STATES[random.nextInt(STATES.length)]),
+					SymbolTable.TAGS.intern("usage" + random.nextInt(USAGES)),
+					SymbolTable.TAGS.intern("owner" + random.nextInt(OWNERS)),
+					random.nextBoolean() ? PriceTable.OS_LINUX : PriceTable.OS_WINDOWS,
+					now - random.nextInt(30*24)*60L*60*1000, 0);
+		}
+		return inventory;
+	}
+
+	private static PriceTable createPriceTable() {
+		Random random = new Random(0);
+		PriceTable.Builder builder = new PriceTable.Builder();
+		for(String region : REGIONS) {
+			for(String type : TYPES) {
+				builder.put(region, type, PriceTable.OS_LINUX, Double.toString(random.nextInt(5000) / 1000.0));
+				builder.put(region, type, PriceTable.OS_WINDOWS, Double.toString(random.nextInt(5000) / 1000.0));
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * One benchmark, set up once per instance count and then run repeatedly.
+	 */
+	private static abstract class Benchmark {
+		private final String name;
+
+		protected Benchmark(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param count The number of instances
+		 */
+		public void setup(int count) {
+		}
+
+		/**
+		 * @return Some result of the operation which is kept so that the operation is not optimized away
+		 */
+		public abstract double run();
+	}
+
+	/**
+	 * Sums up counts and costs by usage and type like the aggregation of the monitor and reads them back.
+	 */
+	private static class MeasureBenchmark extends Benchmark {
+		private String[] usages;
+		private String[] types;
+
+		private MeasureBenchmark() {
+			super("measure");
+		}
+
+		@Override
+		public void setup(int count) {
+			Random random = new Random(count);
+			usages = new String[count];
+			types = new String[count];
+			for(int i = 0;i < count;i++) {
+				// keys are distinct objects like the ones read from Amazon, not interned constants
+				usages[i] = new String("usage" + random.nextInt(USAGES));
+				types[i] = new String(TYPES[random.nextInt(TYPES.length)]);
+			}
+		}
+
+		@Override
+		public double run() {
+			Measure byUsage = new Measure(AmazonAccountMonitor.TAG_USAGE);
+			Measure byType = new Measure(AmazonAccountMonitor.TAG_TYPE);
+			for(int i = 0;i < usages.length;i++) {
+				byUsage.addValue(0.5);
+				byUsage.addDynamicMeasure(usages[i], 0.5);
+				byType.addValue(0.5);
+				byType.addDynamicMeasure(types[i], 0.5);
+			}
+
+			double result = 0;
+			for(Map.Entry<String, Double> entry : byUsage.getDynamicMeasures().entrySet()) {
+				result += entry.getValue();
+			}
+			return result + byType.getDynamicMeasures().size();
+		}
+	}
+
+	/**
+	 * Finds the Usage of instances with a realistic number of tags via the default rules.
+	 */
+	private static class UsageTagBenchmark extends Benchmark {
+		private Instance[] instances;
+
+		private UsageTagBenchmark() {
+			super("usageTag");
+		}
+
+		@Override
+		public void setup(int count) {
+			Random random = new Random(count);
+			instances = new Instance[count];
+			for(int i = 0;i < count;i++) {
+				instances[i] = createInstance(random, i);
+			}
+		}
+
+		@Override
+		public double run() {
+			int result = 0;
+			for(Instance instance : instances) {
+				result += AmazonUtils.getUsageTag(instance).length();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Looks up the price of each instance via the name of its cost-property.
+	 */
+	private static class PriceNameBenchmark extends Benchmark {
+		private final PriceTable table = createPriceTable();
+		private Inventory inventory;
+
+		private PriceNameBenchmark() {
+			super("priceByName");
+		}
+
+		@Override
+		public void setup(int count) {
+			inventory = createInventory(count);
+		}
+
+		@Override
+		public double run() {
+			double result = 0;
+			for(int row = 0;row < inventory.size();row++) {
+				result += table.price(SymbolTable.REGIONS.name(inventory.getRegion(row)),
+						SymbolTable.INSTANCE_TYPES.name(inventory.getType(row)), inventory.getOs(row));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Looks up the price of each instance via the ids of region and type, as done by the monitor.
+	 */
+	private static class PriceTableBenchmark extends Benchmark {
+		private final PriceTable table = createPriceTable();
+		private Inventory inventory;
+
+		private PriceTableBenchmark() {
+			super("priceById");
+		}
+
+		@Override
+		public void setup(int count) {
+			inventory = createInventory(count);
+		}
+
+		@Override
+		public double run() {
+			double result = 0;
+			for(int row = 0;row < inventory.size();row++) {
+				result += table.price(inventory.getRegion(row), inventory.getType(row), inventory.getOs(row));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Computes the running time of all instances with the accumulators from the previous run.
+	 */
+	private static class CostIntegratorBenchmark extends Benchmark {
+		private final BitSet stoppedStates = new BitSet();
+		private Inventory inventory;
+		private CostIntegrator integrator;
+		private long now;
+
+		private CostIntegratorBenchmark() {
+			super("costIntegrator");
+			stoppedStates.set(SymbolTable.STATES.intern("stopped"));
+			stoppedStates.set(SymbolTable.STATES.intern("terminated"));
+		}
+
+		@Override
+		public void setup(int count) {
+			inventory = createInventory(count);
+			integrator = new CostIntegrator();
+			now = System.currentTimeMillis();
+			integrator.integrate(inventory, stoppedStates, now - 60*60*1000, now);
+		}
+
+		@Override
+		public double run() {
+			// each run continues where the previous one stopped, like consecutive executions of the monitor
+			long from = now;
+			now += 60*1000;
+			double[] hours = integrator.integrate(inventory, stoppedStates, from, now);
+			return hours.length == 0 ? 0 : hours[0];
+		}
+	}
+
+	/**
+	 * Parses a recorded pricing file from memory.
+	 */
+	private static class PriceParserBenchmark extends Benchmark {
+		private final String url;
+		private final byte[] data;
+		private int prices;
+
+		private PriceParserBenchmark(File file) throws IOException {
+			super("priceParser");
+			this.url = file.getName();
+
+			// the parser logs each region it finds, which would dominate the measurement
+			Logger.getLogger(PriceParser.class.getName()).setLevel(Level.WARNING);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			InputStream stream = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while((read = stream.read(buffer)) != -1) {
+					bytes.write(buffer, 0, read);
+				}
+			} finally {
+				stream.close();
+			}
+			data = bytes.toByteArray();
+		}
+
+		@Override
+		public double run() {
+			Properties properties = new Properties();
+			try {
+				PriceParser.parse(new ByteArrayInputStream(data), url, properties);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not parse pricing file " + url, e);
+			}
+			prices = properties.size();
+			return prices;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/***************************************************
+ * dynaTrace Diagnostics (c) dynaTrace software GmbH
+ *
+ * @file: LoadTest.java
+ * @date: 18.10.2026
+ */
+package com.dynatrace.diagnostics.plugins.amazon;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.dynatrace.diagnostics.pdk.MonitorEnvironment;
+import com.dynatrace.diagnostics.pdk.MonitorMeasure;
+import com.dynatrace.diagnostics.pdk.Status;
+
+
+/**
+ * Small helper application which measures how the execution of the monitor scales with the
+ * size of the account, by running it against an {@link AmazonStandIn} with 100 up to 100.000
+ * instances.
+ *
+ * For each size a new stand-in is started and the monitor is set up like in dynaTrace and
+ * executed a few times, the first execution includes the initial download of the prices.
+ * The duration of each execution, the requests which were sent and the heap which is used
+ * afterwards and at most during the execution are reported.
+ *
+ * Arguments, all optional:
+ * <ul>
+ * <li>--sizes: comma-separated numbers of instances, default 100,1000,10000,100000</li>
+ * <li>--executions: how often the monitor is executed per size, default 3</li>
+ * <li>--threads: the number of collection threads of the monitor, default 8</li>
+ * <li>--incremental: true to use incremental collection</li>
+ * <li>--background: true to use background collection, executions after the first one then report the data of the first collection</li>
+ * <li>all arguments of {@link AmazonStandIn}, the port defaults to any free port</li>
+ * </ul>
+ */
+public class LoadTest {
+	private static final Logger log = Logger.getLogger(LoadTest.class.getName());
+
+	private static final String DEFAULT_SIZES = "100,1000,10000,100000";
+	private static final int DEFAULT_EXECUTIONS = 3;
+	private static final long DEFAULT_THREADS = 8;
+
+	public static void main(String[] args) throws Exception {
+		AmazonUtils.init(null);
+
+		String sizes = DEFAULT_SIZES;
+		int executions = DEFAULT_EXECUTIONS;
+		long threads = DEFAULT_THREADS;
+		boolean incremental = false;
+		boolean background = false;
+		boolean portSet = false;
+		for(int i = 0;i + 1 < args.length;i++) {
+			if("--sizes".equals(args[i])) {
+				sizes = args[++i];
+			} else if("--executions".equals(args[i])) {
+				executions = Integer.parseInt(args[++i]);
+			} else if("--threads".equals(args[i])) {
+				threads = Long.parseLong(args[++i]);
+			} else if("--incremental".equals(args[i])) {
+				incremental = Boolean.parseBoolean(args[++i]);
+			} else if("--background".equals(args[i])) {
+				background = Boolean.parseBoolean(args[++i]);
+			} else if("--port".equals(args[i])) {
+				portSet = true;
+			}
+		}
+
+		AmazonStandIn.Options options = AmazonStandIn.Options.parse(args);
+		if(!portSet) {
+			options.port = 0;
+		}
+
+		List<String> results = new ArrayList<String>();
+		for(String size : sizes.split(",")) {
+			results.addAll(run(options.withInstances(Integer.parseInt(size.trim())), executions, threads, incremental, background));
+		}
+
+		log.info("Results:\n" + String.format("%10s %9s %10s %10s %10s %10s %10s %s%n", "instances", "execution", "time (ms)",
+				"requests", "throttled", "heap (MB)", "peak (MB)", "status") + join(results));
+	}
+
+	private static List<String> run(AmazonStandIn.Options options, int executions, long threads, boolean incremental, boolean background) throws Exception {
+		AmazonStandIn standIn = new AmazonStandIn(options);
+		standIn.start();
+
+		System.setProperty(AmazonAccountMonitor.SYSTEM_PROPERTY_ENDPOINT_BASE_URL, standIn.getBaseUrl());
+		File tempFolder = createTempFolder();
+		try {
+			Map<String, Object> config = new HashMap<String, Object>();
+			config.put(AmazonAccountMonitor.ENV_CONFIG_ACCESS_KEY, "standin");
+			config.put(AmazonAccountMonitor.ENV_CONFIG_SECRET_KEY, "standin");
+			config.put(AmazonAccountMonitor.ENV_CONFIG_REGION, "All");
+			config.put(AmazonAccountMonitor.ENV_CONFIG_COST_PROPERTIES, standIn.getRDSCostProperties());
+			config.put(AmazonAccountMonitor.ENV_CONFIG_TEMP_FOLDER, tempFolder.getAbsolutePath());
+			config.put(AmazonAccountMonitor.ENV_CONFIG_UNIQUE_ID, "loadtest");
+			config.put(AmazonAccountMonitor.ENV_CONFIG_COLLECTION_THREADS, threads);
+			config.put(AmazonAccountMonitor.ENV_CONFIG_INCREMENTAL, incremental);
+			config.put(AmazonAccountMonitor.ENV_CONFIG_BACKGROUND_COLLECTION, background);
+			MeasureCounter counter = new MeasureCounter();
+			MonitorEnvironment env = createEnvironment(config, counter);
+
+			List<String> results = new ArrayList<String>();
+			AmazonAccountMonitor monitor = new AmazonAccountMonitor();
+			monitor.setup(env);
+			try {
+				for(int execution = 1;execution <= executions;execution++) {
+					long requests = standIn.getRequests();
+					long throttled = standIn.getThrottled();
+					resetPeakHeap();
+
+					long start = System.nanoTime();
+					Status status = monitor.execute(env);
+					long duration = (System.nanoTime() - start)/1000/1000;
+
+					long peak = getPeakHeap();
+					results.add(String.format("%10d %9d %10d %10d %10d %10.1f %10.1f %s", options.instances, execution, duration,
+							standIn.getRequests() - requests, standIn.getThrottled() - throttled,
+							getUsedHeap() / 1024.0 / 1024, peak / 1024.0 / 1024, status.getStatusCode()));
+					log.info(results.get(results.size() - 1) + ", wrote " + counter.values.get() + " values overall");
+				}
+			} finally {
+				monitor.teardown(env);
+			}
+			return results;
+		} finally {
+			System.clearProperty(AmazonAccountMonitor.SYSTEM_PROPERTY_ENDPOINT_BASE_URL);
+			standIn.stop();
+			delete(tempFolder);
+		}
+	}
+
+	/**
+	 * @return A minimal environment which returns the given configuration and counts the written values
+	 */
+	private static MonitorEnvironment createEnvironment(final Map<String, Object> config, final MeasureCounter counter) {
+		// only the methods that the monitor uses are implemented, independent of the version of the PDK
+		return (MonitorEnvironment) Proxy.newProxyInstance(LoadTest.class.getClassLoader(), new Class<?>[] { MonitorEnvironment.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if(name.startsWith("getConfig") && args != null && args.length == 1) {
+					Object value = config.get(args[0]);
+					return method.getReturnType().isInstance(value) ? value : null;
+				} else if("getMonitorMeasures".equals(name)) {
+					return Collections.singletonList(counter.createMeasure());
+				} else if("createDynamicMeasure".equals(name)) {
+					return counter.createMeasure();
+				}
+				return getDefault(method.getReturnType());
+			}
+		});
+	}
+
+	private static Object getDefault(Class<?> type) {
+		if(type == boolean.class) {
+			return Boolean.FALSE;
+		} else if(type == long.class) {
+			return 0L;
+		} else if(type == int.class) {
+			return 0;
+		} else if(type == double.class) {
+			return 0.0;
+		}
+		return null;
+	}
+
+	private static void resetPeakHeap() {
+		System.gc();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return The sum of the peak usage of all heap pools, an upper bound of the heap which was used at the same time
+	 */
+	private static long getPeakHeap() {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * @return The heap which is still used after a garbage collection, i.e. what the monitor keeps between executions
+	 */
+	private static long getUsedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static File createTempFolder() throws IOException {
+		File folder = File.createTempFile("LoadTest", "");
+		if(!folder.delete() || !folder.mkdir()) {
+			throw new IOException("Could not create temporary folder " + folder);
+		}
+		return folder;
+	}
+
+	private static void delete(File folder) {
+		File[] files = folder.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				if(!file.delete()) {
+					log.warning("Could not delete " + file);
+				}
+			}
+		}
+		if(!folder.delete()) {
+			log.warning("Could not delete " + folder);
+		}
+	}
+
+	private static String join(Collection<String> lines) {
+		StringBuilder builder = new StringBuilder();
+		for(String line : lines) {
+			builder.append(line).append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Counts the values which are written to the measures.
+	 */
+	private static class MeasureCounter {
+		private final AtomicLong values = new AtomicLong();
+
+		private MonitorMeasure createMeasure() {
+			return (MonitorMeasure) Proxy.newProxyInstance(LoadTest.class.getClassLoader(), new Class<?>[] { MonitorMeasure.class }, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if("setValue".equals(method.getName())) {
+						values.incrementAndGet();
+					} else if("equals".equals(method.getName())) {
+						return proxy == args[0];
+					} else if("hashCode".equals(method.getName())) {
+						return System.identityHashCode(proxy);
+					} else if("toString".equals(method.getName())) {
+						return "MonitorMeasure";
+					}
+					return getDefault(method.getReturnType());
+				}
+			});
+		}
+	}
+}